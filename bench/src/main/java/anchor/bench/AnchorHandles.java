@@ -0,0 +1,101 @@
+package anchor.bench;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/*
+
+    Method handles for the Anchor methods under benchmark. Anchor lives in the unnamed package, which cannot be
+    imported from a named package (and JMH requires benchmarks to be in one), so its methods are looked up here once
+    and invoked through the handles.
+
+ */
+final class AnchorHandles {
+
+    static final MethodHandle EXTRACT_ANCHOR_COMMENTS;
+    static final MethodHandle CONTAINS_ANCHOR_MARKER;
+    static final MethodHandle GET_CONFIG_DATA;
+    static final MethodHandle OPEN_STORE;
+    static final MethodHandle STORE_WRITE;
+    static final MethodHandle STORE_READ;
+    static final MethodHandle NEW_WRITE_PLAN;
+    static final MethodHandle WRITE_PLAN_OF;
+    static final MethodHandle INIT_CONFIG_FILE;
+    static final MethodHandle SAVE;
+    static final MethodHandle LOAD_MANIFEST;
+
+    static {
+        try{
+            Class<?> anchorClass = Class.forName("Anchor");
+            Class<?> storeClass = Class.forName("CommentStore");
+            Class<?> planClass = Class.forName("WritePlan");
+            Class<?> manifestClass = Class.forName("FileManifest");
+            MethodHandles.Lookup anchorLookup = MethodHandles.privateLookupIn(anchorClass, MethodHandles.lookup());
+            MethodHandles.Lookup storeLookup = MethodHandles.privateLookupIn(storeClass, MethodHandles.lookup());
+            MethodHandles.Lookup planLookup = MethodHandles.privateLookupIn(planClass, MethodHandles.lookup());
+            MethodHandles.Lookup manifestLookup = MethodHandles.privateLookupIn(manifestClass, MethodHandles.lookup());
+
+            EXTRACT_ANCHOR_COMMENTS = anchorLookup.findStatic(anchorClass, "extractAnchorComments",
+                    MethodType.methodType(boolean.class, BufferedReader.class, BufferedWriter.class, planClass, List.class)).asType(MethodType.methodType(boolean.class, BufferedReader.class, BufferedWriter.class, Object.class, List.class));
+            CONTAINS_ANCHOR_MARKER = anchorLookup.findStatic(anchorClass, "containsAnchorMarker",
+                    MethodType.methodType(boolean.class, Path.class, CRC32C.class));
+            GET_CONFIG_DATA = anchorLookup.findStatic(anchorClass, "getConfigData",
+                    MethodType.methodType(HashMap.class, String.class));
+            OPEN_STORE = storeLookup.findStatic(storeClass, "open",
+                    MethodType.methodType(storeClass, String.class, HashMap.class)).asType(MethodType.methodType(Object.class, String.class, HashMap.class));
+            STORE_WRITE = storeLookup.findVirtual(storeClass, "write",
+                    MethodType.methodType(int.class, planClass)).asType(MethodType.methodType(int.class, Object.class, Object.class));
+            STORE_READ = storeLookup.findVirtual(storeClass, "read",
+                    MethodType.methodType(String.class, String.class)).asType(MethodType.methodType(String.class, Object.class, String.class));
+            NEW_WRITE_PLAN = planLookup.findConstructor(planClass, MethodType.methodType(void.class)).asType(MethodType.methodType(Object.class));
+            WRITE_PLAN_OF = planLookup.findStatic(planClass, "of",
+                    MethodType.methodType(planClass, Map.class, Map.class)).asType(MethodType.methodType(Object.class, Map.class, Map.class));
+            INIT_CONFIG_FILE = anchorLookup.findStatic(anchorClass, "initConfigFile",
+                    MethodType.methodType(int.class, String.class, String.class, String.class));
+            SAVE = anchorLookup.findStatic(anchorClass, "save",
+                    MethodType.methodType(int.class, String.class, HashMap.class, storeClass, manifestClass, boolean.class)).asType(MethodType.methodType(int.class, String.class, HashMap.class, Object.class, Object.class, boolean.class));
+            LOAD_MANIFEST = manifestLookup.findStatic(manifestClass, "load",
+                    MethodType.methodType(manifestClass, String.class)).asType(MethodType.methodType(Object.class, String.class));
+        } catch(ReflectiveOperationException e){
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private AnchorHandles(){
+    }
+
+    // Opens a comment store of the given storage engine in initDirPathString.
+    static Object openStore(String initDirPathString, String storage) throws Throwable {
+
+        HashMap<String, String> configData = new HashMap<String, String>();
+        configData.put("storage", storage);
+
+        return OPEN_STORE.invokeExact(initDirPathString, configData);
+
+    }
+
+    static int writeStore(Object store, List<String> commentIds, List<String> bodies, String option) throws Throwable {
+
+        Map<String, String> anchorData = new HashMap<String, String>();
+        Map<String, String> anchorOptions = new HashMap<String, String>();
+
+        for(int i = 0; i < commentIds.size(); i++){
+            anchorData.put(commentIds.get(i), bodies.get(i));
+            anchorOptions.put(commentIds.get(i), option);
+        }
+
+        Object plan = WRITE_PLAN_OF.invokeExact(anchorData, anchorOptions);
+
+        return (int) STORE_WRITE.invokeExact(store, plan);
+
+    }
+
+}
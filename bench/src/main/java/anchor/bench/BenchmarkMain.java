@@ -0,0 +1,61 @@
+package anchor.bench;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.time.format.DateTimeFormatter;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+
+    Entry point of the benchmark jar. Accepts the usual JMH command line, but writes results as JSON to
+    anchor-bench-{timestamp}.json unless -rf or -rff are given, so runs can be compared between versions. Given "scale"
+    as its first argument, runs the end to end ScaleHarness instead.
+
+        cd bench
+        mvn -B package
+        java -jar target/benchmarks.jar                      all benchmarks
+        java -jar target/benchmarks.jar Extract -p lineCount=100000
+        java -jar target/benchmarks.jar scale --files 1000,10000
+
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Throwable {
+
+        if(args.length > 0 && args[0].equals("scale")){
+            ScaleHarness.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+
+        if(commandLineOptions.shouldHelp()){
+            commandLineOptions.showHelp();
+            return;
+        }
+
+        if(commandLineOptions.shouldList()){
+            new Runner(commandLineOptions).list();
+            return;
+        }
+
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLineOptions);
+
+        if(!commandLineOptions.getResultFormat().hasValue()){
+            options.resultFormat(ResultFormatType.JSON);
+        }
+
+        if(!commandLineOptions.getResult().hasValue()){
+            options.result("anchor-bench-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".json");
+        }
+
+        new Runner(options.build()).run();
+
+    }
+
+}
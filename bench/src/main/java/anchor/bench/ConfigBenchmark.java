@@ -0,0 +1,45 @@
+package anchor.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Loading of config.txt, which every command does on start up, read from its snapshot once it has been parsed.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigBenchmark {
+
+    private Path tempDirPath;
+    private String initDirPathString;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        tempDirPath = Files.createTempDirectory("anchor-bench");
+        initDirPathString = tempDirPath.resolve(".anchor").toString();
+        Files.createDirectories(Path.of(initDirPathString));
+
+        // config paths are built with Windows separators, so write the file at the path Anchor will look for
+        SourceGenerator.writeFile(Path.of(initDirPathString + "\\config.txt"),
+                "targetDir=" + tempDirPath + "\ntargetExtension=.java, .kt\nexclude=.git/, build/\nstorage=packed\nparallelism=4\n");
+
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        SourceGenerator.deleteRecursively(tempDirPath);
+    }
+
+    @Benchmark
+    public HashMap<String, String> getConfigData() throws Throwable {
+        return (HashMap<String, String>) AnchorHandles.GET_CONFIG_DATA.invokeExact(initDirPathString);
+    }
+
+}
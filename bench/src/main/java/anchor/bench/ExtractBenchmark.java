@@ -0,0 +1,71 @@
+package anchor.bench;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+import org.openjdk.jmh.annotations.*;
+
+// Extraction of anchor comments, and the marker pre-scan, over files of varying size and anchor density.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExtractBenchmark {
+
+    @Param({"1000", "100000"})
+    public int lineCount;
+
+    @Param({"0", "10", "100"})
+    public int anchorsPerThousandLines;
+
+    @Param({"5"})
+    public int bodyLines;
+
+    private String source;
+    private Path tempDirPath;
+    private Path sourcePath;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        source = new SourceGenerator(SourceGenerator.SEED).generateSource(lineCount, anchorsPerThousandLines, bodyLines, "Extract");
+        tempDirPath = Files.createTempDirectory("anchor-bench");
+        sourcePath = tempDirPath.resolve("Generated.java");
+        SourceGenerator.writeFile(sourcePath, source);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        SourceGenerator.deleteRecursively(tempDirPath);
+    }
+
+    @Benchmark
+    public Object extract() throws Throwable {
+
+        Object plan = AnchorHandles.NEW_WRITE_PLAN.invokeExact();
+        List<Object> anchors = new ArrayList<Object>();
+
+        try(BufferedReader reader = new BufferedReader(new StringReader(source));
+            BufferedWriter writer = new BufferedWriter(Writer.nullWriter())){
+            boolean isModified = (boolean) AnchorHandles.EXTRACT_ANCHOR_COMMENTS.invokeExact(reader, writer, plan, anchors);
+        }
+
+        return plan;
+
+    }
+
+    @Benchmark
+    public boolean scanForMarker() throws Throwable {
+        return (boolean) AnchorHandles.CONTAINS_ANCHOR_MARKER.invokeExact(sourcePath, new CRC32C());
+    }
+
+}
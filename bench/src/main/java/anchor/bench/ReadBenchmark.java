@@ -0,0 +1,60 @@
+package anchor.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Lookups of stored comments by id, in stores of varying size, through a freshly opened store as "anchor read" does.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadBenchmark {
+
+    @Param({"files", "packed", "dedup"})
+    public String storage;
+
+    @Param({"1000", "10000"})
+    public int anchorCount;
+
+    private List<String> commentIds;
+    private Path tempDirPath;
+    private String initDirPathString;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+
+        commentIds = SourceGenerator.generateIds(anchorCount, "Read");
+        tempDirPath = Files.createTempDirectory("anchor-bench");
+        Files.createDirectories(tempDirPath.resolve(".anchor"));
+        initDirPathString = tempDirPath.resolve(".anchor").toString();
+
+        Object store = AnchorHandles.openStore(initDirPathString, storage);
+        AnchorHandles.writeStore(store, commentIds, new SourceGenerator(SourceGenerator.SEED).generateBodies(anchorCount, 5), "-u");
+
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        SourceGenerator.deleteRecursively(tempDirPath);
+    }
+
+    @Benchmark
+    public String read() throws Throwable {
+        Object store = AnchorHandles.openStore(initDirPathString, storage);
+        return (String) AnchorHandles.STORE_READ.invokeExact(store, commentIds.get(ThreadLocalRandom.current().nextInt(anchorCount)));
+    }
+
+    @Benchmark
+    public String readMissing() throws Throwable {
+        Object store = AnchorHandles.openStore(initDirPathString, storage);
+        return (String) AnchorHandles.STORE_READ.invokeExact(store, "[Anchor.Missing]");
+    }
+
+}
@@ -0,0 +1,265 @@
+package anchor.bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/*
+
+    End to end scale run, as opposed to the JMH benchmarks of single paths. Generates a synthetic target tree, then
+    initializes, saves, saves again unchanged and reads back every stored comment through the same entry points as
+    the command line, reporting throughput, read latency percentiles and peak heap of each phase.
+
+        java -jar target/benchmarks.jar scale                                         defaults below
+        java -jar target/benchmarks.jar scale --files 1000,10000,100000 --storage files,packed,dedup
+
+    Options, each taking a value:
+        --files       comma separated file counts, one run per count (1000)
+        --depth       directory depth of the tree, with 8 directories per level (3)
+        --lines       lines per file (200)
+        --density     anchors per 1000 lines, each with a random option of none, -u, -a or -r (20)
+        --body-lines  lines of each anchor's comment body (3)
+        --storage     comma separated storage engines, one run per engine (files)
+        --reads       number of stored comments read back, sampled at random (1000)
+
+    Runs are made in a temporary directory which is deleted afterwards. Generation depends only on the seed, so runs
+    with the same options work on the same tree.
+
+ */
+final class ScaleHarness {
+
+    private static final int FANOUT = 8;
+
+    private final int depth;
+    private final int lineCount;
+    private final int anchorsPerThousandLines;
+    private final int bodyLines;
+    private final int readCount;
+
+    private ScaleHarness(int depth, int lineCount, int anchorsPerThousandLines, int bodyLines, int readCount){
+        this.depth = depth;
+        this.lineCount = lineCount;
+        this.anchorsPerThousandLines = anchorsPerThousandLines;
+        this.bodyLines = bodyLines;
+        this.readCount = readCount;
+    }
+
+    // Ids of the generated anchors and the size of the generated tree.
+    private static class Tree {
+        final List<String> storedIds = new ArrayList<String>();
+        int anchorCount;
+        long byteCount;
+    }
+
+    static void main(String[] args) throws Throwable {
+
+        HashMap<String, String> options = new HashMap<String, String>();
+
+        for(int i = 0; i < args.length; i += 2){
+            if(!args[i].startsWith("--") || i + 1 == args.length){
+                System.out.println("Expected options of the form --name value, see the usage in ScaleHarness!");
+                return;
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+
+        ScaleHarness harness;
+        List<Integer> fileCounts = new ArrayList<Integer>();
+
+        try{
+            harness = new ScaleHarness(
+                    Integer.parseInt(options.getOrDefault("depth", "3")),
+                    Integer.parseInt(options.getOrDefault("lines", "200")),
+                    Integer.parseInt(options.getOrDefault("density", "20")),
+                    Integer.parseInt(options.getOrDefault("body-lines", "3")),
+                    Integer.parseInt(options.getOrDefault("reads", "1000")));
+            for(String fileCount : options.getOrDefault("files", "1000").split(",")){
+                fileCounts.add(Integer.parseInt(fileCount.trim()));
+            }
+        } catch(NumberFormatException e){
+            System.out.println("Invalid numeric option! " + e.getMessage());
+            return;
+        }
+
+        for(int fileCount : fileCounts){
+            for(String storage : options.getOrDefault("storage", "files").split(",")){
+                harness.run(fileCount, storage.trim());
+            }
+        }
+
+    }
+
+    private void run(int fileCount, String storage) throws Throwable {
+
+        Path rootPath = Files.createTempDirectory("anchor-scale");
+
+        try{
+
+            Path targetPath = rootPath.resolve("target");
+            Tree tree = generate(targetPath, fileCount);
+
+            System.out.println();
+            System.out.printf("%s: %d files, %d anchors, %.1f MB%n", storage, fileCount, tree.anchorCount, tree.byteCount / 1e6);
+
+            // laid out as the command line lays out an init dir in the directory it is run from
+            String initDirPathString = rootPath.resolve("project") + "\\.anchor";
+
+            long start = System.nanoTime();
+            Files.createDirectories(Path.of(initDirPathString));
+            if((int) AnchorHandles.INIT_CONFIG_FILE.invokeExact(targetPath.toString(), initDirPathString, ".java") == -1){
+                return;
+            }
+            Files.write(Path.of(initDirPathString + "\\config.txt"), ("\nstorage=" + storage).getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            System.out.printf("  init    %8.1f ms%n", (System.nanoTime() - start) / 1e6);
+
+            if(save("save", initDirPathString, fileCount, tree) == -1 || save("resave", initDirPathString, fileCount, tree) == -1){
+                return;
+            }
+
+            read(initDirPathString, storage, tree.storedIds);
+
+        } finally{
+            SourceGenerator.deleteRecursively(rootPath);
+        }
+
+    }
+
+    // Writes fileCount generated files, spread over the directories of the tree by file number.
+    private Tree generate(Path targetPath, int fileCount) throws IOException {
+
+        SourceGenerator generator = new SourceGenerator(SourceGenerator.SEED);
+        Tree tree = new Tree();
+
+        for(int i = 0; i < fileCount; i++){
+
+            Path dirPath = targetPath;
+
+            for(int level = 0; level < depth; level++){
+                dirPath = dirPath.resolve("d" + (i / (int) Math.pow(FANOUT, level)) % FANOUT);
+            }
+
+            String source = generator.generateSource(lineCount, anchorsPerThousandLines, bodyLines, "F" + i);
+
+            for(String line : source.split("\n")){
+                int markerIndex = line.indexOf("[Anchor.");
+                if(markerIndex != -1){
+                    int endIndex = line.indexOf(']', markerIndex) + 1;
+                    tree.anchorCount++;
+                    if(!line.substring(endIndex).trim().equals("-r")){
+                        tree.storedIds.add(line.substring(markerIndex, endIndex));
+                    }
+                }
+            }
+
+            Files.createDirectories(dirPath);
+            SourceGenerator.writeFile(dirPath.resolve("F" + i + ".java"), source);
+            tree.byteCount += source.length();
+        }
+
+        return tree;
+
+    }
+
+    // Runs a save as "anchor save" does, with a freshly loaded config, store and manifest.
+    private int save(String phaseName, String initDirPathString, int fileCount, Tree tree) throws Throwable {
+
+        resetPeakHeap();
+        long start = System.nanoTime();
+
+        HashMap<?, ?> configData = (HashMap<?, ?>) AnchorHandles.GET_CONFIG_DATA.invokeExact(initDirPathString);
+        Object store = AnchorHandles.OPEN_STORE.invokeExact(initDirPathString, configData);
+        Object manifest = AnchorHandles.LOAD_MANIFEST.invokeExact(initDirPathString);
+
+        if(store == null || (int) AnchorHandles.SAVE.invokeExact(initDirPathString, configData, store, manifest, false) == -1){
+            System.out.println("Scale run failed during " + phaseName + "!");
+            return -1;
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("  %-7s %8.1f ms  %10.0f files/s  %10.0f anchors/s  %7.1f MB/s  peak heap %6.1f MB%n", phaseName, seconds * 1e3,
+                fileCount / seconds, tree.anchorCount / seconds, tree.byteCount / 1e6 / seconds, getPeakHeap() / 1e6);
+
+        return 1;
+
+    }
+
+    // Reads a random sample of the stored comments, opening the store for each read as "anchor read" does.
+    private void read(String initDirPathString, String storage, List<String> storedIds) throws Throwable {
+
+        ArrayList<String> sampleIds = new ArrayList<String>(storedIds);
+        Collections.shuffle(sampleIds, new Random(SourceGenerator.SEED));
+        List<String> readIds = sampleIds.subList(0, Math.min(readCount, sampleIds.size()));
+
+        if(readIds.isEmpty()){
+            return;
+        }
+
+        long[] latencies = new long[readIds.size()];
+        int missingCount = 0;
+
+        resetPeakHeap();
+
+        for(int i = 0; i < readIds.size(); i++){
+
+            long start = System.nanoTime();
+            Object store = AnchorHandles.openStore(initDirPathString, storage);
+            String data = (String) AnchorHandles.STORE_READ.invokeExact(store, readIds.get(i));
+            latencies[i] = System.nanoTime() - start;
+
+            if(data == null){
+                missingCount++;
+            }
+        }
+
+        Arrays.sort(latencies);
+
+        System.out.printf("  read    %8d reads  p50 %8.3f ms  p99 %8.3f ms  max %8.3f ms  peak heap %6.1f MB%n", latencies.length,
+                getPercentile(latencies, 50) / 1e6, getPercentile(latencies, 99) / 1e6, latencies[latencies.length - 1] / 1e6, getPeakHeap() / 1e6);
+
+        if(missingCount > 0){
+            System.out.println("  " + missingCount + " stored comment(s) could not be read back!");
+        }
+
+    }
+
+    private static long getPercentile(long[] sortedValues, int percentile){
+        return sortedValues[(int) Math.ceil(sortedValues.length * percentile / 100.0) - 1];
+    }
+
+    private static void resetPeakHeap(){
+        System.gc();
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType() == MemoryType.HEAP){
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    // Sum of the peak usage of each heap pool since the last reset, an upper bound of the peak heap size.
+    private static long getPeakHeap(){
+
+        long peak = 0;
+
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType() == MemoryType.HEAP){
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        return peak;
+
+    }
+
+}
@@ -0,0 +1,142 @@
+package anchor.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/*
+
+    Generates synthetic source files and comment bodies. Output depends only on the seed, so every run of a benchmark
+    works on exactly the same input.
+
+ */
+final class SourceGenerator {
+
+    static final long SEED = 0x414E43484F52L;
+
+    private static final String[] WORDS = {
+            "parser", "token", "buffer", "cache", "index", "offset", "length", "config", "store", "anchor",
+            "invariant", "must", "never", "called", "before", "after", "returns", "null", "when", "empty"
+    };
+    private static final String[] OPTIONS = {"", "-u", "-a", "-r"};
+
+    private final Random random;
+
+    SourceGenerator(long seed){
+        this.random = new Random(seed);
+    }
+
+    /*
+
+        Generates a source file of lineCount lines with anchorsPerThousandLines anchor comments per 1000 lines. Each
+        anchor has a body of bodyLines lines and a random option, and ids are "[Anchor.{idPrefix}.{n}]".
+
+     */
+    String generateSource(int lineCount, int anchorsPerThousandLines, int bodyLines, String idPrefix){
+
+        StringBuilder source = new StringBuilder(lineCount * 40);
+        int anchorNumber = 0;
+        int line = 0;
+
+        source.append("class Generated {\n");
+
+        while(line < lineCount){
+
+            if(anchorsPerThousandLines > 0 && random.nextInt(1000) < anchorsPerThousandLines){
+
+                source.append("    // [Anchor.").append(idPrefix).append('.').append(anchorNumber++).append("] ")
+                        .append(OPTIONS[random.nextInt(OPTIONS.length)]).append('\n');
+                source.append("    /*\n");
+
+                for(int i = 0; i < bodyLines; i++){
+                    source.append("        ").append(generateSentence(8)).append('\n');
+                }
+
+                source.append("    */\n");
+                line += bodyLines + 3;
+                continue;
+
+            }
+
+            source.append("    int field").append(line).append(" = ").append(random.nextInt()).append("; // ").append(generateSentence(4)).append('\n');
+            line++;
+
+        }
+
+        source.append("}\n");
+        return source.toString();
+
+    }
+
+    // Returns count comment bodies of bodyLines lines each, formatted as extraction stores them.
+    List<String> generateBodies(int count, int bodyLines){
+
+        List<String> bodies = new ArrayList<String>(count);
+
+        for(int i = 0; i < count; i++){
+
+            StringBuilder body = new StringBuilder();
+
+            for(int j = 0; j < bodyLines; j++){
+                body.append(generateSentence(8)).append('\n');
+            }
+
+            bodies.add(body.toString());
+        }
+
+        return bodies;
+
+    }
+
+    static List<String> generateIds(int count, String idPrefix){
+
+        List<String> commentIds = new ArrayList<String>(count);
+
+        for(int i = 0; i < count; i++){
+            commentIds.add("[Anchor." + idPrefix + "." + i + "]");
+        }
+
+        return commentIds;
+
+    }
+
+    private String generateSentence(int wordCount){
+
+        StringBuilder sentence = new StringBuilder();
+
+        for(int i = 0; i < wordCount; i++){
+            if(i > 0){
+                sentence.append(' ');
+            }
+            sentence.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+
+        return sentence.toString();
+
+    }
+
+    static void writeFile(Path filePath, String content) throws IOException {
+        Files.write(filePath, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+
+        if(path == null || !Files.exists(path)){
+            return;
+        }
+
+        try(Stream<Path> paths = Files.walk(path)){
+            for(Path current : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator){
+                Files.delete(current);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,63 @@
+package anchor.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+
+    Writes of a save's worth of anchors to each storage engine, for each option. The store is filled with the same
+    anchors before every invocation, so -u replaces, -r removes and -a appends to existing data each time.
+
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+
+    @Param({"files", "packed", "dedup"})
+    public String storage;
+
+    @Param({"", "-u", "-a", "-r"})
+    public String option;
+
+    @Param({"100", "1000"})
+    public int anchorCount;
+
+    private List<String> commentIds;
+    private List<String> bodies;
+    private Path tempDirPath;
+    private Object store;
+
+    @Setup(Level.Trial)
+    public void setUpTrial(){
+        commentIds = SourceGenerator.generateIds(anchorCount, "Store");
+        bodies = new SourceGenerator(SourceGenerator.SEED).generateBodies(anchorCount, 5);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() throws Throwable {
+        SourceGenerator.deleteRecursively(tempDirPath);
+        tempDirPath = Files.createTempDirectory("anchor-bench");
+        Files.createDirectories(tempDirPath.resolve(".anchor"));
+        store = AnchorHandles.openStore(tempDirPath.resolve(".anchor").toString(), storage);
+        AnchorHandles.writeStore(store, commentIds, bodies, "-u");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        SourceGenerator.deleteRecursively(tempDirPath);
+    }
+
+    @Benchmark
+    public int write() throws Throwable {
+        return AnchorHandles.writeStore(store, commentIds, bodies, option);
+    }
+
+}
@@ -1,37 +1,67 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
 
+// Commands taking a list of ids, paths or options are variadic, the others take at most a single argument.
 enum Command{
-    INIT, SAVE, READ, HELP, INVALID
-}
-
-public class Anchor {
+    INIT(false), SAVE(true), READ(true), WATCH(false), SEARCH(true), LIST(true), LOCATE(true), HISTORY(false), RESTORE(false),
+    EXPORT(false), IMPORT(true), GC(true), DAEMON(false), HELP(false), INVALID(false);
 
-    // Reads all file content, from specified filePath, into fileLines list
-    private static List<String> getFileContent(String filePath){
+    final boolean isVariadic;
 
-        List<String> fileContent;
-        File file = new File(filePath);
+    Command(boolean isVariadic){
+        this.isVariadic = isVariadic;
+    }
+}
 
-        if(!file.exists()){
-            System.out.println("Provided file path does not exist!");
-            return null;
-        }
+public class Anchor {
 
-        try{
-            fileContent = Files.readAllLines(Paths.get(filePath));
-        }catch (Exception e){
-            System.out.println(e);
-            return null; // failure
+    private static final byte[] ANCHOR_MARKER = "[Anchor.".getBytes(StandardCharsets.UTF_8);
+    private static final long MAP_THRESHOLD = 64 * 1024;
+    private static final long MAX_SCAN_WINDOW = 1L << 30;
+    private static final int LIST_BATCH_SIZE = 1024;
+    private static final int NEWLINE_LENGTH = System.lineSeparator().length(); // as written by BufferedWriter.newLine
+
+    // Anchor data and options extracted from a single source file. Files are extracted independently so
+    // that they can be processed concurrently, and are then merged back in target file order.
+    private static class FileExtraction {
+        final String filePath;
+        final WritePlan plan = new WritePlan();
+        final ArrayList<FileManifest.AnchorLocation> anchors = new ArrayList<FileManifest.AnchorLocation>();
+        int status = 1;
+        boolean isSkipped = false;
+        boolean isRecorded = false;
+        boolean isRewritten = false;
+        long contentHash;
+        long size; // size and modification time of the file the content hash was computed from
+        long modifiedTime;
+        long bytesRead = 0;
+        long bytesWritten = 0;
+        long nanos = 0;
+
+        FileExtraction(String filePath){
+            this.filePath = filePath;
         }
-
-        return fileContent; // success
-
     }
 
     /*
@@ -44,472 +74,1155 @@ public class Anchor {
 
         This method will get anchor data AND remove comment data from source code file!
 
+        The source is streamed from reader to writer in a single pass. Lines outside of anchor comments are copied
+        through as they are read, so memory use is bounded by the largest comment rather than by the file size.
+        Returns true if the written content differs from the source content. The location of every anchor marker in
+        the written content is added to anchors in the order the markers appear, for the manifest's record of where
+        anchors are located.
+
      */
-    private static void extractAnchorComments(List<String> fileContent, HashMap<String, String> anchorData, HashMap<String, String> anchorOptions){
-        if(fileContent.isEmpty()){
-            return;
-        }
+    private static boolean extractAnchorComments(BufferedReader reader, BufferedWriter writer, WritePlan plan, List<FileManifest.AnchorLocation> anchors) throws IOException {
 
-        String comment = ""; // not using StringBuilder because it does not automatically append newline characters
+        boolean isModified = false;
+        StringBuilder comment = new StringBuilder();
         String anchorKey = "";
         String anchorOption = "";
+        String line = reader.readLine();
+        int writtenLines = 0;
+        long writtenBytes = 0;
 
-        for(int i = 0; i < fileContent.size(); i++){
+        while(line != null){
 
-            String line = fileContent.get(i);
+            anchorKey = getAnchorKey(line);
 
-            if(line.contains("[Anchor.")){
-                comment = "";
-                anchorKey = line.substring(line.indexOf("[Anchor."), line.indexOf("]") + 1);
-                anchorOption = line.substring(line.indexOf("]") + 1).trim();
-
-                fileContent.set(i, "// " + anchorKey); // remove option flags from comments if present
+            if(anchorKey == null){
+                writer.write(line);
+                writer.newLine();
+                writtenLines++;
+                writtenBytes += getUtf8Length(line) + NEWLINE_LENGTH;
+                line = reader.readLine();
+                continue;
+            }
 
-                if((!anchorOption.startsWith("-") && !anchorOption.isEmpty() ) || anchorOption.length() > 2){
-                    System.out.println("Skipping anchor with id : " + anchorKey + " with invalid option : " + anchorOption);
-                    continue;
-                }
-                else{
-//                    System.out.println(anchorKey + "  :  " + anchorOption);
-                    anchorOptions.put(anchorKey, anchorOption);
-                }
+            anchorOption = getAnchorOption(line);
+            anchors.add(new FileManifest.AnchorLocation(anchorKey, writtenLines + 1, writtenBytes));
 
-                int searchIdx = i + 1;
-                boolean hasAnchorComment = fileContent.get(searchIdx).contains("/*");
+            if(!line.equals("// " + anchorKey)){
+                isModified = true;
+            }
 
-                if(!hasAnchorComment){ // skip processing if no anchor comment is present
-                    continue;
-                }
+            writer.write("// " + anchorKey); // remove option flags from comments if present
+            writer.newLine();
+            writtenLines++;
+            writtenBytes += getUtf8Length(anchorKey) + 3 + NEWLINE_LENGTH;
+            line = reader.readLine();
 
-                while(searchIdx < fileContent.size()){
+            if((!anchorOption.startsWith("-") && !anchorOption.isEmpty() ) || anchorOption.length() > 2){
+                System.out.println("Skipping anchor with id : " + anchorKey + " with invalid option : " + anchorOption);
+                continue;
+            }
 
-                    // file lines are removed as a means to iterate through the file lines.
+            if(line == null || !line.contains("/*")){ // skip processing if no anchor comment is present
+                addToPlan(plan, anchorKey, anchorOption, null);
+                continue;
+            }
 
-                    line = fileContent.get(searchIdx);
+            comment.setLength(0);
+            isModified = true;
 
-                    if(line.contains("*/")){
-                        fileContent.remove(searchIdx);
-                        break;
-                    }
+            while(line != null){
 
-                    if(line.contains("/*")){
-                        fileContent.remove(searchIdx);
-                        continue;
-                    }
+                // comment lines are consumed without being written, which removes them from the source file.
 
-                    comment += line.trim();
-                    comment += "\n";
+                if(line.contains("*/")){
+                    line = reader.readLine();
+                    break;
+                }
 
-                    fileContent.remove(searchIdx);
+                if(!line.contains("/*")){
+                    comment.append(line.trim());
+                    comment.append('\n');
                 }
-                anchorData.put(anchorKey, comment.toString());
+
+                line = reader.readLine();
             }
 
+            addToPlan(plan, anchorKey, anchorOption, comment.toString());
+
         }
 
-    }
+        return isModified;
 
-    public static int writeUpdatedFile(String filePath, List<String> fileContent){
-        try {
-            Files.write(Paths.get(filePath), fileContent); // save file with removed anchor comments
-        } catch (IOException e) {
-            System.out.println(e);
-            return -1;
-        }
-        return 1;
     }
 
-    // get number of newline characters in a string
-    private static int getNewlineCount(String data){
+    // Number of bytes the line takes up once encoded as UTF-8, as target files are written.
+    private static int getUtf8Length(String line){
+
+        int length = line.length();
 
-        int count = 0;
+        for(int i = 0; i < line.length(); i++){
 
-        for(int i = 0; i < data.length(); i++){
-            if(data.charAt(i) == '\n'){
-                count++;
+            char current = line.charAt(i);
+
+            if(current >= 0x80){
+                if(current < 0x800){
+                    length++;
+                }
+                else if(Character.isHighSurrogate(current)){
+                    length += 2; // with its low surrogate, a 4 byte sequence from 2 chars
+                    i++;
+                }
+                else{
+                    length += 2;
+                }
             }
+
         }
 
-        return count;
+        return length;
 
     }
 
-    // write comment data, and generated metadata, to file
-    public static int writeDataToFile(String initDirPathString, HashMap<String, String> anchorData, HashMap<String, String> anchorOptions){
+    // Returns the id of the anchor marker on a line, e.g. "[Anchor.Comment.ID]", or null if the line has no complete
+    // marker. The id ends at the first "]" after "[Anchor.", so brackets earlier on the line, as in "a[i] = 0;", are
+    // not part of it. Used wherever markers are read, so save, restore and gc agree on every line.
+    static String getAnchorKey(String line){
 
-        final String dataDirPathString = initDirPathString + "\\data";
+        int startIndex = line.indexOf("[Anchor.");
+        int endIndex = startIndex == -1 ? -1 : line.indexOf(']', startIndex);
 
-        if(!Files.exists(Path.of(dataDirPathString))){
-            try{
-                Files.createDirectory(Path.of(dataDirPathString));
-            } catch(Exception e){
-                System.out.println("Failed to create data directory!");
-                System.out.println(e);
-                return -1;
-            }
+        return endIndex == -1 ? null : line.substring(startIndex, endIndex + 1);
+
+    }
+
+    // Returns the option following the anchor marker of a line, e.g. "-u", or "" if it has none. The line must
+    // contain a complete marker.
+    static String getAnchorOption(String line){
+        return line.substring(line.indexOf(']', line.indexOf("[Anchor.")) + 1).trim();
+    }
+
+    private static void addToPlan(WritePlan plan, String anchorKey, String anchorOption, String comment){
+        if(!plan.add(anchorKey, anchorOption, comment)){
+            System.out.println("Invalid option provided for : " + anchorKey);
         }
+    }
 
-        boolean isSkipIteration = false;
-        FileWriter dataFileWriter;
-        BufferedWriter dataBufferedWriter;
-        String commentPathString;
-        String commentOption;
-        Set<String> anchorCommentIds = anchorData.keySet();
-        Set<String> anchorOptionsCommentsIdx = anchorOptions.keySet();
+    /*
 
-        // handle comments which have flags but no data
-        for(String commentId : anchorOptionsCommentsIdx){
+        Searches the raw bytes of a file for the anchor marker, without decoding it. Files at least MAP_THRESHOLD bytes
+        long are memory mapped, smaller files are read into a heap buffer since mapping them costs more than a read.
+        The content of the whole file is added to crc, so the scan also provides the file's content hash.
 
-            if(anchorData.get(commentId) != null){
-                continue;
-            }
+     */
+    static boolean containsAnchorMarker(Path filePath, CRC32C crc) throws IOException {
 
-            commentPathString = dataDirPathString + "\\" + commentId + ".txt";
-            commentOption = anchorOptions.get(commentId);
-            commentOption = commentOption.trim();
+        int matched = 0;
 
-            if(commentOption == null || commentOption.isEmpty()){
-                continue;
-            }
+        try(FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)){
 
-            commentOption = commentOption.substring(1);
+            long size = channel.size();
+            long position = 0;
 
-            if(commentOption.equals("a")){
-                continue;
-            }
-            else if(commentOption.equals("u")){ // an update without content means that the user wants to update the comment data to nothing (delete).
-                try{
-                    Files.deleteIfExists(Path.of(commentPathString));
-                } catch(Exception e){
-                    System.out.println("Error deleting data file!");
-                    return -1;
+            while(position < size){
+
+                long windowSize = Math.min(size - position, MAX_SCAN_WINDOW);
+                ByteBuffer window;
+
+                if(size < MAP_THRESHOLD){
+                    window = ByteBuffer.allocate((int) windowSize);
+                    while(window.hasRemaining() && channel.read(window, position + window.position()) != -1);
+                    window.flip();
                 }
-            }
-            else if(commentOption.equals("r")){
-                try{
-                    Files.deleteIfExists(Path.of(commentPathString));
-                } catch(Exception e){
-                    System.out.println("Error deleting data file!");
-                    return -1;
+                else{
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
                 }
-            }
-            else{
-                System.out.println("Invalid option provided for : " + commentId);
-                continue;
+
+                if(matched < ANCHOR_MARKER.length){
+                    matched = scanForMarker(window, matched);
+                }
+
+                crc.update(window);
+                position += windowSize;
             }
 
         }
 
-        // handle all commentIds
-        for(String commentId : anchorCommentIds){
+        return matched == ANCHOR_MARKER.length;
+
+    }
+
+    // Returns how many marker bytes are matched at the end of the buffer, or the marker length once it has been found.
+    // Since '[' only appears at the start of the marker, a mismatch never needs to backtrack.
+    private static int scanForMarker(ByteBuffer buffer, int matched){
 
-            isSkipIteration = false;
-            commentPathString = dataDirPathString + "\\" + commentId + ".txt";
-            commentOption = anchorOptions.get(commentId);
+        for(int i = buffer.position(); i < buffer.limit(); i++){
 
-            if(commentOption != null){
-                commentOption = commentOption.trim();
-                if(commentOption.isEmpty()){
-                    commentOption = null;
+            byte current = buffer.get(i);
+
+            if(current == ANCHOR_MARKER[matched]){
+                matched++;
+                if(matched == ANCHOR_MARKER.length){
+                    return matched;
                 }
             }
+            else{
+                matched = current == ANCHOR_MARKER[0] ? 1 : 0;
+            }
 
-            // handle comment flags
-            if(commentOption != null){
-
-                commentOption = commentOption.substring(1);
-
-                switch(commentOption){
-                    case "u": // update
-                        try{
-                            Files.deleteIfExists(Path.of(commentPathString));
-                        } catch(Exception e){
-                            System.out.println("Error deleting data file!");
-                            return -1;
-                        }
-                        break;
-                    case "a": // append
-                        // no action required to append to file
-                        break;
-                    case "r": // remove
-                        try{
-                            Files.deleteIfExists(Path.of(commentPathString));
-                            isSkipIteration = true;
-                        } catch(Exception e){
-                            System.out.println("Error deleting data file!");
-                            return -1;
-                        }
-                        break;
-                    default:
-                        System.out.println("Invalid option provided for : " + commentId);
-                        isSkipIteration = true;
-                }
+        }
 
-                if(isSkipIteration){
-                    continue;
-                }
+        return matched;
 
-            }
+    }
 
-            try{
+    // Extracts anchor comments from a single file and rewrites it. Safe to run concurrently for distinct files.
+    // Files which are unchanged since the last save, according to the manifest, are skipped. Files are only read
+    // and rewritten when the pre-scan finds an anchor marker, and only replaced if extraction changed them.
+    private static FileExtraction processTargetFile(String targetFile, FileManifest manifest){
 
-                if(!Files.exists(Path.of(commentPathString))){
-                    Files.createFile(Path.of(commentPathString));
-                }
+        SaveStats.FileEvent event = SaveStats.isRecording() ? new SaveStats.FileEvent() : null;
+        long startNanos = System.nanoTime();
 
-                dataFileWriter = new FileWriter(commentPathString, true);
-                dataBufferedWriter = new BufferedWriter(dataFileWriter);
-            }catch(IOException e){
-                System.out.println("Failed initializing data file(s)!");
-                System.out.println(e);
-                return -1;
-            }
+        if(event != null){
+            event.begin();
+        }
 
-            try{
-                dataBufferedWriter.write(anchorData.get(commentId));
-                dataBufferedWriter.close();
-                dataFileWriter.close();
-            } catch(Exception e){
-                System.out.println("Failed writing comment data to file!");
-                System.out.println(e);
-                return -1;
-            }
+        FileExtraction extraction = extractTargetFile(targetFile, manifest);
 
+        extraction.nanos = System.nanoTime() - startNanos;
+
+        if(event == null){
+            return extraction;
         }
 
-        return 1;
+        event.path = targetFile;
+        event.bytesRead = extraction.bytesRead;
+        event.bytesWritten = extraction.bytesWritten;
+        event.anchorCount = extraction.anchors.size();
+        event.isSkipped = extraction.isSkipped;
+        event.isRewritten = extraction.isRewritten;
+        event.commit();
+
+        return extraction;
 
     }
 
-    private static int readStoredData(String commentId, String initDirPathString){
+    private static FileExtraction extractTargetFile(String targetFile, FileManifest manifest){
 
-        final String commentPathString = initDirPathString + "\\data\\" + "[Anchor." + commentId + "].txt";
+        FileExtraction extraction = new FileExtraction(targetFile);
+        Path sourcePath = Paths.get(targetFile);
+        Path tempPath = sourcePath.resolveSibling("." + sourcePath.getFileName() + ".anchor-tmp");
 
-        if(!Files.exists(Path.of(commentPathString))){
-            System.out.println("No comment data file exists!");
-            return -1;
+        if(!Files.exists(sourcePath)){
+            System.out.println("Provided file path does not exist!");
+            return extraction;
         }
 
-        try{
-            FileReader commentFileReader = new FileReader(commentPathString);
-            BufferedReader commentBufferedReader = new BufferedReader(commentFileReader);
+        if(manifest.isUnchanged(targetFile)){
+            extraction.isSkipped = true;
+            return extraction;
+        }
 
-            String commentData = commentBufferedReader.readLine();
+        CRC32C sourceCrc = new CRC32C();
+        CRC32C rewrittenCrc = new CRC32C();
+        boolean isModified;
+        long sourceSize;
 
-            while(commentData != null){
-                System.out.println(commentData);
-                commentData = commentBufferedReader.readLine();
+        // read before hashing, so an edit made while the file is processed leaves the manifest entry out of date
+        try{
+            BasicFileAttributes attributes = Files.readAttributes(sourcePath, BasicFileAttributes.class);
+            sourceSize = attributes.size();
+            extraction.size = sourceSize;
+            extraction.modifiedTime = attributes.lastModifiedTime().toMillis();
+            extraction.bytesRead = sourceSize;
+            if(!containsAnchorMarker(sourcePath, sourceCrc)){
+                extraction.contentHash = sourceCrc.getValue();
+                extraction.isRecorded = true;
+                return extraction;
             }
+        } catch(IOException e){
+            System.out.println(e);
+            return extraction;
+        }
 
+        // the source file is left untouched, and none of its anchors are recorded, if it cannot be read in full
+        try(BufferedReader reader = Files.newBufferedReader(sourcePath);
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new CheckedOutputStream(Files.newOutputStream(tempPath), rewrittenCrc), StandardCharsets.UTF_8))){
+            isModified = extractAnchorComments(reader, writer, extraction.plan, extraction.anchors);
+            extraction.bytesRead += sourceSize;
+        } catch(Exception e){
+            System.out.println(e);
+            extraction.plan.clear();
+            extraction.anchors.clear();
+            deleteTempFile(tempPath);
+            return extraction;
+        }
 
-        } catch (Exception e){
-            System.out.println("Error reading from comment data file!");
-            return -1;
+        if(!isModified){
+            deleteTempFile(tempPath);
+            extraction.contentHash = sourceCrc.getValue();
+            extraction.isRecorded = true;
+            return extraction;
         }
 
-        return 1;
+        try{
+            extraction.bytesWritten = Files.size(tempPath);
+            extraction.size = extraction.bytesWritten;
+            extraction.modifiedTime = replaceSourceFile(sourcePath, tempPath); // save file with removed anchor comments
+        } catch(IOException e){
+            System.out.println(e);
+            deleteTempFile(tempPath);
+            extraction.status = -1;
+            return extraction;
+        }
+
+        extraction.contentHash = rewrittenCrc.getValue();
+        extraction.isRecorded = true;
+        extraction.isRewritten = true;
+        return extraction;
+
     }
 
-    private static List<String> getTargetFilePaths(String initDirPath){
+    /*
 
-        ArrayList<String> result = new ArrayList<String>();
-        HashMap<String, String> configData = getConfigData(initDirPath);
-        String targetDirPath = "";
-        String targetExtension = "";
+        Replaces the source file with the temp file written next to it, moving the temp file over the source once it
+        has been given the source's permissions, owner and ACL, so the source is never left half written. A source
+        which is a symbolic link or has other hard links, or whose attributes cannot be copied, is instead rewritten
+        in place from the temp file, so the links keep pointing at the rewritten file, as writing it directly would.
 
-        if(configData == null){
-            System.out.println("Config data is null!");
-            return null;
-        }
+        Returns the modification time of the source file once replaced, which is that of the temp file, or -1 if it
+        was rewritten in place, since it could have been modified again before its time is read.
 
-        if(!configData.containsKey("targetDir")){
-            System.out.println("Configuration does not contain targetDir key!");
-            return null;
-        }
+     */
+    static long replaceSourceFile(Path sourcePath, Path tempPath) throws IOException {
 
-        if(!configData.containsKey("targetExtension")){
-            System.out.println("Configuration does not contain targetExtension key!");
-            return null;
+        if(!Files.isSymbolicLink(sourcePath) && getLinkCount(sourcePath) == 1 && copyAttributes(sourcePath, tempPath)){
+            long modifiedTime = Files.getLastModifiedTime(tempPath).toMillis();
+            Files.move(tempPath, sourcePath, StandardCopyOption.REPLACE_EXISTING);
+            return modifiedTime;
         }
 
-        targetDirPath = configData.get("targetDir");
-        targetExtension = configData.get("targetExtension");
+        try(FileChannel tempChannel = FileChannel.open(tempPath, StandardOpenOption.READ);
+            FileChannel sourceChannel = FileChannel.open(sourcePath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+
+            long size = tempChannel.size();
+            long position = 0;
+
+            while(position < size){
+                position += sourceChannel.transferFrom(tempChannel, position, size - position);
+            }
+
+        }
 
-        getTargetFilePathsHelper(result, targetDirPath, targetExtension);
+        Files.delete(tempPath);
 
-        return result;
+        return -1;
 
     }
 
-    public static void getTargetFilePathsHelper(ArrayList<String> result, String path, String targetExtension){
+    // Returns the number of hard links to the file, or 1 if the file system does not report it.
+    private static int getLinkCount(Path filePath){
+        try{
+            return (Integer) Files.getAttribute(filePath, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+        } catch(IOException | UnsupportedOperationException | IllegalArgumentException e){
+            return 1;
+        }
+    }
 
-        Set<String> dirs;
-        Set<String> files;
+    // Copies the permissions, owner and ACL of the source file to the target file. Returns false if any cannot be copied.
+    private static boolean copyAttributes(Path sourcePath, Path targetPath){
 
         try{
-            dirs = getDirPathsInCurrentDir(path);
-            files = getFilesPathsInCurrentDir(path);
 
-            for(String file : files){
-                if(file.endsWith(targetExtension)){
-                    result.add(file);
+            PosixFileAttributeView sourcePosixView = Files.getFileAttributeView(sourcePath, PosixFileAttributeView.class);
+            AclFileAttributeView sourceAclView = Files.getFileAttributeView(sourcePath, AclFileAttributeView.class);
+            DosFileAttributeView sourceDosView = Files.getFileAttributeView(sourcePath, DosFileAttributeView.class);
+
+            if(sourcePosixView != null){
+                PosixFileAttributes attributes = sourcePosixView.readAttributes();
+                PosixFileAttributeView targetView = Files.getFileAttributeView(targetPath, PosixFileAttributeView.class);
+                if(!Files.getOwner(targetPath).equals(attributes.owner())){
+                    targetView.setOwner(attributes.owner());
+                }
+                if(!targetView.readAttributes().group().equals(attributes.group())){
+                    targetView.setGroup(attributes.group());
                 }
+                targetView.setPermissions(attributes.permissions());
             }
 
-            for(String dir: dirs){
-                getTargetFilePathsHelper(result, dir, targetExtension);
+            if(sourceAclView != null){
+                AclFileAttributeView targetView = Files.getFileAttributeView(targetPath, AclFileAttributeView.class);
+                targetView.setOwner(sourceAclView.getOwner());
+                targetView.setAcl(sourceAclView.getAcl());
             }
 
-        } catch(Exception e){
-            System.out.println(e);
-        }
+            if(sourceDosView != null && sourcePosixView == null){
+                DosFileAttributes attributes = sourceDosView.readAttributes();
+                DosFileAttributeView targetView = Files.getFileAttributeView(targetPath, DosFileAttributeView.class);
+                targetView.setHidden(attributes.isHidden());
+                targetView.setSystem(attributes.isSystem());
+                targetView.setArchive(attributes.isArchive());
+            }
 
-    }
+            return true;
 
-    public static Set<String> getDirsInCurrentDir(String dir) throws IOException {
-        try (Stream<Path> stream = Files.list(Paths.get(dir))) {
-            return stream
-                    .filter(file -> Files.isDirectory(file))
-                    .map(Path::getFileName)
-                    .map(Path::toString)
-                    .collect(Collectors.toSet());
+        } catch(IOException | UnsupportedOperationException | SecurityException e){
+            return false;
         }
-    }
 
-    public static Set<String> getDirPathsInCurrentDir(String dir) throws IOException {
-        try (Stream<Path> stream = Files.list(Paths.get(dir))) {
-            return stream
-                    .filter(file -> Files.isDirectory(file))
-                    .map(Path::toAbsolutePath)
-                    .map(Path::toString)
-                    .collect(Collectors.toSet());
-        }
     }
 
-    public static Set<String> getFilesPathsInCurrentDir(String dir) throws IOException {
-        try (Stream<Path> stream = Files.list(Paths.get(dir))) {
-            return stream
-                    .filter(file -> !Files.isDirectory(file))
-                    .map(Path::toAbsolutePath)
-                    .map(Path::toString)
-                    .collect(Collectors.toSet());
+    private static void deleteTempFile(Path tempPath){
+        try{
+            Files.deleteIfExists(tempPath);
+        } catch(IOException e){
+            System.out.println("Failed deleting temporary file : " + tempPath);
         }
     }
 
-    public static int initConfigFile(String targetDir, String initDirPathString, String targetExtension){
+    /*
 
-        String configPathString = initDirPathString + "\\config.txt";
-        Path configPath = Path.of(initDirPathString + "\\config.txt");
+        Extracts and rewrites all target files using a pool of parallelism threads. The write plan of every file is
+        folded into plan in target file order, so an anchor id appearing in several files results in the same
+        operation as it would if the files were processed one at a time.
 
-        try{
-            Files.createFile(configPath);
-        } catch(Exception e){
-            System.out.println("Failed creating configuration file!");
-            System.out.println(e);
-            return -1;
-        }
+        The manifest is updated with every file that was saved, but is not written to disk by this method. Per file
+        byte counts and timings are recorded in stats. Returns -1 if any file failed, in which case plan still holds
+        the operations of every other file, whose sources have already been rewritten.
 
-        try{
-            FileWriter configFileWriter = new FileWriter(configPathString);
-            BufferedWriter configFileBufferedWriter = new BufferedWriter(configFileWriter);
-            configFileBufferedWriter.write("targetDir=" + targetDir);
-            configFileBufferedWriter.newLine();
-            configFileBufferedWriter.write("targetExtension=" + targetExtension);
-            configFileBufferedWriter.close();
-            configFileWriter.close();
-        } catch(Exception e){
-            System.out.println("Error writing data to config file!");
-            return -1;
-        }
+     */
+    public static int saveTargetFiles(List<String> targetFiles, int parallelism, FileManifest manifest, WritePlan plan, SaveStats stats){
 
-        return 1;
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        List<Future<FileExtraction>> extractions = new ArrayList<Future<FileExtraction>>(targetFiles.size());
+        int skippedCount = 0;
+        int status = 1;
 
-    }
+        try{
 
-    public static HashMap<String, String> getConfigData(String initDirPath){
+            for(String targetFile : targetFiles){
+                extractions.add(executor.submit(() -> processTargetFile(targetFile, manifest)));
+            }
 
-        File temp = new File(initDirPath);
-        HashMap<String, String> result = new HashMap<String, String>();
+            for(int i = 0; i < extractions.size(); i++){
 
-        if(!temp.exists() || !temp.isDirectory()){
-            System.out.println("Cannot get config data because init dir does not exist!");
-            return null;
-        }
+                FileExtraction extraction;
 
-        try{
-            FileReader configReader = new FileReader(initDirPath + "\\config.txt");
-            BufferedReader configBufferedReader = new BufferedReader(configReader);
-            String configString = "";
+                try{
+                    extraction = extractions.get(i).get();
+                } catch(ExecutionException e){
+                    System.out.println("Error extracting anchor comments from : " + targetFiles.get(i));
+                    System.out.println(e.getCause());
+                    status = -1;
+                    continue;
+                }
 
-            while(configString != null){
-                configString = configBufferedReader.readLine();
+                stats.recordFile(extraction.filePath, extraction.isSkipped, extraction.isRewritten, extraction.bytesRead, extraction.bytesWritten, extraction.nanos);
 
-                if(configString == null){
-                    break;
+                if(extraction.status != 1){
+                    System.out.println("Failed updating source code file after anchor comments were extracted : " + extraction.filePath);
+                    status = -1;
+                    continue;
                 }
 
-                if(configString.contains("=")){
-                    String[] splitResult = configString.split("=");
-
-                    if(splitResult.length != 2){
-                        System.out.println("Error parsing line in config file!");
-                        return null;
-                    }
-                    else{
-                        result.put(splitResult[0], splitResult[1]);
-                    }
+                if(extraction.isSkipped){
+                    skippedCount++;
+                    continue;
+                }
 
+                if(extraction.isRecorded){
+                    manifest.record(extraction.filePath, extraction.size, extraction.modifiedTime, extraction.contentHash, extraction.anchors);
                 }
 
+                plan.addAll(extraction.plan);
+
             }
 
         } catch(Exception e){
-            System.out.println("Error reading config data from config file!");
+            System.out.println("Error extracting anchor comments!");
             System.out.println(e);
-            return null;
+            return -1;
+        } finally{
+            executor.shutdown();
         }
 
-        return result;
+        System.out.println("Skipped " + skippedCount + " unchanged file(s).");
+
+        return status;
 
     }
 
-    public static boolean isRootDirInitialized(Set<String> dirs){
-        for(String dir : dirs){
-            if(dir.equals(".anchor")){
-                return true;
-            }
-        }
-        return false;
+    // Extracts anchor comments from the target files and stores them, indexing and recording a version of every changed
+    // comment, then records the saved files in the manifest.
+    public static int saveComments(String initDirPathString, List<String> targetFiles, int parallelism, FileManifest manifest, CommentStore store){
+        return saveComments(initDirPathString, targetFiles, parallelism, manifest, store, new SaveStats());
     }
 
-    // Parses command arg and returns corresponding enum value
-    public static Command parseCommand(String command){
-        switch(command.toLowerCase()){
-            case "init":
-                return Command.INIT;
-            case "save":
-                return Command.SAVE;
-            case "read":
-                return Command.READ;
-            case "help":
-                return Command.HELP;
-            default:
-                return Command.INVALID;
+    public static int saveComments(String initDirPathString, List<String> targetFiles, int parallelism, FileManifest manifest, CommentStore store, SaveStats stats){
+
+        WritePlan plan = new WritePlan();
+
+        SaveStats.Phase phase = stats.begin("extract");
+        int status = saveTargetFiles(targetFiles, parallelism, manifest, plan, stats);
+        phase.end();
+
+        // the files which were rewritten no longer hold their comments, so those are stored even if others failed
+        if(status != 1){
+            System.out.println("Failed updating source code file(s) after anchor comments were extracted!");
+        }
+
+        if(writePlan(initDirPathString, store, plan, stats) == -1){
+            return -1;
         }
+
+        phase = stats.begin("manifest");
+        int manifestStatus = manifest.save();
+        phase.end();
+
+        return status == 1 ? manifestStatus : -1;
+
     }
 
-    public static void main(String[] args) {
+    // Carries out a write plan on the store, then brings the search index and the comment history up to date with it.
+    static int writePlan(String initDirPathString, CommentStore store, WritePlan plan, SaveStats stats){
 
-        if(args.length == 0){
-            System.out.println("Anchor is a command line tool for organizing and managing comments made in source code files.\nUse the \"help\" command to learn more!");
-            return;
+        // every saved file was unchanged, which is common when only a few files are saved
+        if(plan.isEmpty()){
+            return 1;
         }
-        else if (args.length > 2){
-            System.out.println("Too many arguments! Maximum of 2 expected.");
-            return;
+
+        SaveStats.Phase phase = stats.begin("store");
+        int status = store.write(plan);
+        phase.end();
+        stats.recordStored(plan);
+
+        if(status == -1){
+            System.out.println("Failed writing data to file!");
+            return -1;
+        }
+
+        phase = stats.begin("index");
+        HashMap<String, String> storedData = store.read(plan.getCommentIds());
+        status = storedData == null ? -1 : SearchIndex.update(initDirPathString, plan.getCommentIds(), storedData);
+        phase.end();
+
+        if(status == -1){
+            return -1;
+        }
+
+        phase = stats.begin("history");
+        status = new CommentHistory(initDirPathString).update(plan, storedData);
+        phase.end();
+
+        return status;
+
+    }
+
+    // Implements "anchor save", both in process and in the daemon. Prints and records stats if isStatsEnabled is set.
+    static int save(String initDirPathString, HashMap<String, String> configData, CommentStore store, FileManifest manifest, boolean isStatsEnabled){
+        return save(initDirPathString, configData, store, manifest, isStatsEnabled, Collections.emptyList());
+    }
+
+    /*
+
+        Saves only the target files among the given paths, directories or globs, e.g. the files staged for a commit,
+        or every target file if none are given. A partial save leaves the manifest entries of other files as they are,
+        since only a full save finds out which files no longer exist.
+
+     */
+    static int save(String initDirPathString, HashMap<String, String> configData, CommentStore store, FileManifest manifest, boolean isStatsEnabled, List<String> paths){
+
+        SaveStats stats = new SaveStats();
+        SaveStats.Phase phase = stats.begin("discover");
+        List<TargetFileWalker> walkers = getTargetFileWalkers(configData);
+        List<String> targetFiles = walkers == null ? null : paths.isEmpty() ? TargetFileWalker.walk(walkers, getParallelism(configData))
+                : TargetFileWalker.select(walkers, paths, Paths.get("").toAbsolutePath(), getParallelism(configData));
+        phase.end();
+
+        if(targetFiles == null){
+            return -1;
+        }
+
+        if(paths.isEmpty()){
+            manifest.retainAll(targetFiles);
+        }
+
+        if(saveComments(initDirPathString, targetFiles, getParallelism(configData), manifest, store, stats) == -1){
+            return -1;
+        }
+
+        System.out.println("Successfully saved comments!");
+
+        if(isStatsEnabled){
+            stats.print();
+            stats.writeReport(initDirPathString);
+        }
+
+        return 1;
+
+    }
+
+    /*
+
+        Returns the paths given to "anchor save", which are its arguments other than "--stats", with "--files-from FILE"
+        replaced by the paths listed in FILE one per line, or in standard input if FILE is "-". Returns null if the
+        list cannot be read.
+
+     */
+    static List<String> getSavePaths(List<String> args){
+
+        ArrayList<String> paths = new ArrayList<String>();
+
+        for(int i = 0; i < args.size(); i++){
+
+            if(args.get(i).equals("--stats")){
+                continue;
+            }
+
+            if(!args.get(i).equals("--files-from")){
+                paths.add(args.get(i));
+                continue;
+            }
+
+            if(i + 1 == args.size()){
+                System.out.println("Expected a file, or - for standard input, after \"--files-from\"!");
+                return null;
+            }
+
+            String listPathString = args.get(++i);
+
+            try{
+                BufferedReader listReader = listPathString.equals("-") ? new BufferedReader(new InputStreamReader(System.in)) : Files.newBufferedReader(Paths.get(listPathString));
+                String line = listReader.readLine();
+
+                while(line != null){
+                    if(!line.trim().isEmpty()){
+                        paths.add(line.trim());
+                    }
+                    line = listReader.readLine();
+                }
+
+                if(!listPathString.equals("-")){
+                    listReader.close();
+                }
+            } catch(IOException e){
+                System.out.println("Error reading list of files to save!");
+                System.out.println(e);
+                return null;
+            }
+
+        }
+
+        return paths;
+
+    }
+
+    // Implements "anchor read", given the ids, or id prefixes ending in *, following the command, or a single id
+    // followed by "--version N".
+    static void read(String initDirPathString, List<String> commentIds, CommentStore store){
+        if(commentIds.contains("--version")){
+            readVersion(initDirPathString, commentIds);
+        }
+        else if(commentIds.size() == 1 && !commentIds.get(0).endsWith("*")){
+            readStoredData(commentIds.get(0), store);
+        }
+        else{
+            readStoredData(commentIds, store);
+        }
+    }
+
+    private static int readVersion(String initDirPathString, List<String> args){
+
+        if(args.size() != 3 || !args.get(1).equals("--version") || !args.get(2).matches("\\d{1,9}")){
+            System.out.println("Expected a single id followed by \"--version N\"!");
+            return -1;
+        }
+
+        String commentData = new CommentHistory(initDirPathString).read("[Anchor." + args.get(0) + "]", Integer.parseInt(args.get(2)));
+
+        if(commentData == null){
+            System.out.println("No comment data exists for version " + args.get(2) + " of : " + args.get(0));
+            return -1;
+        }
+
+        System.out.print(commentData);
+        return 1;
+
+    }
+
+    /*
+
+        Implements "anchor locate", printing where the markers of an anchor were as of the last save, e.g.
+            anchor locate Comment.ID           one "{file}:{line}  byte {offset}" line per marker
+            anchor locate Comment.ID --json    one {"file", "line", "offset"} object per marker
+
+        Answered from the manifest alone, so files changed since the last save are not reflected.
+
+     */
+    static int locate(List<String> args, FileManifest manifest){
+
+        if(args.isEmpty() || args.size() > 2 || (args.size() == 2 && !args.get(1).equals("--json"))){
+            System.out.println("Expected a single id, optionally followed by --json, for \"locate\" command!");
+            return -1;
+        }
+
+        boolean isJson = args.size() == 2;
+        TreeMap<String, List<FileManifest.AnchorLocation>> locations = manifest.locate("[Anchor." + args.get(0) + "]");
+
+        if(locations.isEmpty()){
+            System.out.println("No markers were found for : " + args.get(0));
+            return -1;
+        }
+
+        StringBuilder output = new StringBuilder();
+
+        for(Map.Entry<String, List<FileManifest.AnchorLocation>> entry : locations.entrySet()){
+            for(FileManifest.AnchorLocation anchor : entry.getValue()){
+                if(isJson){
+                    output.append("{\"file\":").append(SaveStats.toJsonString(entry.getKey())).append(",\"line\":").append(anchor.line)
+                            .append(",\"offset\":").append(anchor.offset).append("}\n");
+                }
+                else{
+                    output.append(entry.getKey()).append(':').append(anchor.line).append("  byte ").append(anchor.offset).append('\n');
+                }
+            }
+        }
+
+        System.out.print(output);
+        System.out.flush();
+
+        return 1;
+
+    }
+
+    // Implements "anchor history", listing every recorded version of a comment.
+    static int history(String initDirPathString, String commentId){
+
+        List<CommentHistory.Version> versions = new CommentHistory(initDirPathString).getVersions("[Anchor." + commentId + "]");
+
+        if(versions == null){
+            return -1;
+        }
+
+        if(versions.isEmpty()){
+            System.out.println("No history exists for : " + commentId);
+            return -1;
+        }
+
+        DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+        for(CommentHistory.Version version : versions){
+            System.out.println("Version " + version.version + "  " + timeFormatter.format(Instant.ofEpochMilli(version.time)) + "  -" + (char) version.option
+                    + (version.option == 'r' ? "  removed" : "  " + version.dataLength + " bytes"));
+        }
+
+        return 1;
+
+    }
+
+    // Implements "anchor search".
+    static void search(String initDirPathString, String query){
+
+        SearchIndex searchIndex = SearchIndex.open(initDirPathString);
+
+        if(searchIndex == null){
+            System.out.println("No search index exists! Run \"anchor save\" to build it.");
+            return;
+        }
+
+        List<SearchIndex.Result> results = searchIndex.search(query);
+
+        if(results.isEmpty()){
+            System.out.println("No comments match the search terms!");
+            return;
+        }
+
+        for(SearchIndex.Result result : results){
+            System.out.println(getShortId(result.commentId) + String.format("  %.3f", result.score));
+        }
+
+    }
+
+    /*
+
+        Implements "anchor list", given the arguments following the command:
+            --limit N     lists at most N comments
+            --after ID    lists the comments after the given id, e.g. the last one listed by the previous page
+            --json        prints each comment as a JSON object, one per line
+
+        Comments are listed in id order with the size of their stored data, the options of their stored records where
+        the store keeps them, and the files their anchor markers were in when last saved. The store is read one
+        comment at a time, and the files are looked up in the manifest for a batch of comments at once.
+
+     */
+    static int list(List<String> args, CommentStore store, FileManifest manifest){
+
+        long limit = Long.MAX_VALUE;
+        String afterId = null;
+        boolean isJson = false;
+
+        for(int i = 0; i < args.size(); i++){
+
+            String arg = args.get(i);
+
+            if(arg.equals("--json")){
+                isJson = true;
+            }
+            else if(arg.equals("--limit") && i + 1 < args.size() && args.get(i + 1).matches("\\d{1,18}")){
+                limit = Long.parseLong(args.get(++i));
+            }
+            else if(arg.equals("--after") && i + 1 < args.size()){
+                afterId = "[Anchor." + args.get(++i) + "]";
+            }
+            else{
+                System.out.println("Invalid argument for \"list\" command : " + arg);
+                System.out.println("Expected any of \"--limit N\", \"--after ID\" and \"--json\".");
+                return -1;
+            }
+
+        }
+
+        if(limit == 0){
+            return 1;
+        }
+
+        long listLimit = limit;
+        boolean isJsonOutput = isJson;
+        ArrayList<CommentStore.Listing> batch = new ArrayList<CommentStore.Listing>();
+        long[] listedCount = {0};
+
+        int status = store.list(afterId, listing -> {
+
+            batch.add(listing);
+            listedCount[0]++;
+
+            if(batch.size() == LIST_BATCH_SIZE || listedCount[0] == listLimit){
+                printListings(batch, manifest, isJsonOutput);
+                batch.clear();
+            }
+
+            return listedCount[0] < listLimit;
+
+        });
+
+        printListings(batch, manifest, isJsonOutput);
+
+        if(status == 1 && listedCount[0] == 0 && !isJson){
+            System.out.println(afterId == null ? "No comment data exists!" : "No comment data exists after : " + getShortId(afterId));
+        }
+
+        return status;
+
+    }
+
+    private static void printListings(List<CommentStore.Listing> listings, FileManifest manifest, boolean isJson){
+
+        if(listings.isEmpty()){
+            return;
+        }
+
+        HashSet<String> commentIds = new HashSet<String>();
+
+        for(CommentStore.Listing listing : listings){
+            commentIds.add(listing.commentId);
+        }
+
+        HashMap<String, List<String>> locations = manifest.getLocations(commentIds);
+        StringBuilder output = new StringBuilder();
+
+        for(CommentStore.Listing listing : listings){
+
+            String commentId = getShortId(listing.commentId);
+            List<String> filePaths = locations.getOrDefault(listing.commentId, Collections.emptyList());
+
+            if(isJson){
+
+                output.append("{\"id\":").append(SaveStats.toJsonString(commentId)).append(",\"size\":").append(listing.size).append(",\"options\":[");
+
+                for(int i = 0; i < listing.options.size(); i++){
+                    output.append(i == 0 ? "" : ",").append(SaveStats.toJsonString(listing.options.get(i)));
+                }
+
+                output.append("],\"files\":[");
+
+                for(int i = 0; i < filePaths.size(); i++){
+                    output.append(i == 0 ? "" : ",").append(SaveStats.toJsonString(filePaths.get(i)));
+                }
+
+                output.append("]}\n");
+
+            }
+            else{
+
+                output.append(commentId).append("  ").append(listing.size).append(" bytes");
+
+                if(!listing.options.isEmpty()){
+                    output.append("  ").append(String.join(" ", listing.options));
+                }
+
+                if(!filePaths.isEmpty()){
+                    output.append("  ").append(String.join(", ", filePaths));
+                }
+
+                output.append('\n');
+
+            }
+
+        }
+
+        System.out.print(output);
+        System.out.flush();
+
+    }
+
+    // Returns the id of a comment as given on the command line, e.g. "Comment.ID" for "[Anchor.Comment.ID]".
+    static String getShortId(String commentId){
+        return commentId.startsWith("[Anchor.") && commentId.endsWith("]") ? commentId.substring(8, commentId.length() - 1) : commentId;
+    }
+
+    private static int readStoredData(String commentId, CommentStore store){
+
+        String commentData = store.read("[Anchor." + commentId + "]");
+
+        if(commentData == null){
+            System.out.println("No comment data exists!");
+            return -1;
+        }
+
+        System.out.print(commentData);
+        return 1;
+
+    }
+
+    /*
+
+        Reads several comments at once. An id ending with * is a prefix query, e.g. "Parser.*" reads every comment whose
+        id starts with "Parser.". Each comment is printed after its "// [Anchor.Comment.ID]" marker.
+
+     */
+    private static int readStoredData(List<String> commentIds, CommentStore store){
+
+        int status = 1;
+
+        for(String commentId : commentIds){
+
+            List<String> matchingIds;
+
+            if(commentId.endsWith("*")){
+                matchingIds = store.getCommentIds("[Anchor." + commentId.substring(0, commentId.length() - 1));
+            }
+            else{
+                matchingIds = List.of("[Anchor." + commentId + "]");
+            }
+
+            if(matchingIds.isEmpty()){
+                System.out.println("No comment data exists for : " + commentId);
+                status = -1;
+            }
+
+            for(String matchingId : matchingIds){
+
+                String commentData = store.read(matchingId);
+
+                if(commentData == null){
+                    System.out.println("No comment data exists for : " + matchingId);
+                    status = -1;
+                    continue;
+                }
+
+                System.out.println("// " + matchingId);
+                System.out.print(commentData);
+            }
+
+        }
+
+        return status;
+
+    }
+
+    private static List<String> getTargetFilePaths(String initDirPath){
+        return getTargetFilePaths(getConfigData(initDirPath));
+    }
+
+    static List<String> getTargetFilePaths(HashMap<String, String> configData){
+
+        List<TargetFileWalker> walkers = getTargetFileWalkers(configData);
+
+        return walkers == null ? null : TargetFileWalker.walk(walkers, getParallelism(configData));
+
+    }
+
+    // Returns a walker for the target files of each target directory of the configuration, or null if it is incomplete.
+    static List<TargetFileWalker> getTargetFileWalkers(HashMap<String, String> configData){
+
+        if(configData == null){
+            System.out.println("Config data is null!");
+            return null;
+        }
+
+        int rootCount = AnchorConfig.getRootCount(configData);
+        List<TargetFileWalker> walkers = new ArrayList<TargetFileWalker>(rootCount);
+
+        if(rootCount == 0){
+            System.out.println("Configuration does not contain targetDir key!");
+            return null;
+        }
+
+        for(int root = 0; root < rootCount; root++){
+
+            String targetExtension = configData.get(AnchorConfig.getRootKey("targetExtension", root));
+
+            if(targetExtension == null){
+                System.out.println("Configuration does not contain targetExtension key!");
+                return null;
+            }
+
+            walkers.add(new TargetFileWalker(configData.get(AnchorConfig.getRootKey("targetDir", root)), targetExtension,
+                    configData.get(AnchorConfig.getRootKey("exclude", root))));
+
+        }
+
+        return walkers;
+
+    }
+
+    public static Set<String> getDirsInCurrentDir(String dir) throws IOException {
+        try (Stream<Path> stream = Files.list(Paths.get(dir))) {
+            return stream
+                    .filter(file -> Files.isDirectory(file))
+                    .map(Path::getFileName)
+                    .map(Path::toString)
+                    .collect(Collectors.toSet());
+        }
+    }
+
+    public static int initConfigFile(String targetDir, String initDirPathString, String targetExtension){
+
+        String configPathString = initDirPathString + "\\config.txt";
+        Path configPath = Path.of(initDirPathString + "\\config.txt");
+
+        try{
+            Files.createFile(configPath);
+        } catch(Exception e){
+            System.out.println("Failed creating configuration file!");
+            System.out.println(e);
+            return -1;
+        }
+
+        try{
+            FileWriter configFileWriter = new FileWriter(configPathString);
+            BufferedWriter configFileBufferedWriter = new BufferedWriter(configFileWriter);
+            configFileBufferedWriter.write("targetDir=" + targetDir);
+            configFileBufferedWriter.newLine();
+            configFileBufferedWriter.write("targetExtension=" + targetExtension);
+            configFileBufferedWriter.close();
+            configFileWriter.close();
+        } catch(Exception e){
+            System.out.println("Error writing data to config file!");
+            return -1;
+        }
+
+        return 1;
+
+    }
+
+    // Returns the settings of the config file, see AnchorConfig, or null if it cannot be read or is invalid.
+    public static HashMap<String, String> getConfigData(String initDirPath){
+
+        File temp = new File(initDirPath);
+
+        if(!temp.exists() || !temp.isDirectory()){
+            System.out.println("Cannot get config data because init dir does not exist!");
+            return null;
+        }
+
+        return AnchorConfig.load(initDirPath);
+
+    }
+
+    // Number of threads used to find and extract target files during save. Defaults to the number of available cores.
+    public static int getParallelism(HashMap<String, String> configData){
+
+        int parallelism = Runtime.getRuntime().availableProcessors();
+
+        if(configData == null || !configData.containsKey("parallelism")){
+            return parallelism;
+        }
+
+        try{
+            parallelism = Integer.parseInt(configData.get("parallelism").trim());
+        } catch(NumberFormatException e){
+            System.out.println("Invalid parallelism value in config file! Using " + parallelism + " threads.");
+            return parallelism;
+        }
+
+        return Math.max(1, parallelism);
+
+    }
+
+    public static boolean isRootDirInitialized(Set<String> dirs){
+        for(String dir : dirs){
+            if(dir.equals(".anchor")){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Parses command arg and returns corresponding enum value
+    public static Command parseCommand(String command){
+        switch(command.toLowerCase()){
+            case "init":
+                return Command.INIT;
+            case "save":
+                return Command.SAVE;
+            case "read":
+                return Command.READ;
+            case "watch":
+                return Command.WATCH;
+            case "search":
+                return Command.SEARCH;
+            case "list":
+                return Command.LIST;
+            case "locate":
+                return Command.LOCATE;
+            case "history":
+                return Command.HISTORY;
+            case "restore":
+                return Command.RESTORE;
+            case "export":
+                return Command.EXPORT;
+            case "import":
+                return Command.IMPORT;
+            case "gc":
+                return Command.GC;
+            case "daemon":
+                return Command.DAEMON;
+            case "help":
+                return Command.HELP;
+            default:
+                return Command.INVALID;
+        }
+    }
+
+    public static void main(String[] args) {
+
+        if(args.length == 0){
+            System.out.println("Anchor is a command line tool for organizing and managing comments made in source code files.\nUse the \"help\" command to learn more!");
+            return;
         }
 
         Command command = parseCommand(args[0]);
+
+        if(command == Command.INVALID){
+            System.out.println("Invalid command!");
+            return;
+        }
+        else if(args.length > 2 && !command.isVariadic){
+            System.out.println("Too many arguments! Maximum of 2 expected.");
+            return;
+        }
+
         String filePath = "";
         Set<String> dirs;
         String currentDir = System.getProperty("user.dir"); // gets directory command is being run from
@@ -518,7 +1231,7 @@ public class Anchor {
 
         // Placeholder method of handling commands.
         if(command == Command.HELP){
-            System.out.println("Supported commands are: init, save, read, and help");
+            System.out.println("Supported commands are: init, save, read, watch, search, list, locate, history, restore, export, import, gc, daemon, and help");
             return;
         }
         else if(command == Command.INIT){
@@ -571,8 +1284,87 @@ public class Anchor {
         }
         else if (command == Command.SAVE){
 
+            boolean isStatsEnabled = Arrays.asList(args).contains("--stats");
+            List<String> savePaths = getSavePaths(Arrays.asList(args).subList(1, args.length));
+
+            if(savePaths == null){
+                return;
+            }
+
+            // an empty list, e.g. when nothing is staged, saves nothing rather than every file
+            if(savePaths.isEmpty() && Arrays.asList(args).contains("--files-from")){
+                System.out.println("No files to save.");
+                return;
+            }
+
+            try {
+                dirs = getDirsInCurrentDir(currentDir);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            if(!isRootDirInitialized(dirs)){
+                System.out.println("This directory is not initialized! Initialize this directory with the command \"anchor init\" ");
+                return;
+            }
+
+            // the listed paths are forwarded in place of --files-from, since the daemon cannot read this process's input
+            ArrayList<String> forwardedArgs = new ArrayList<String>();
+            forwardedArgs.add(args[0]);
+            if(isStatsEnabled){
+                forwardedArgs.add("--stats");
+            }
+            forwardedArgs.addAll(savePaths);
+
+            if(AnchorDaemon.forward(initDirPathString, forwardedArgs.toArray(new String[0]))){
+                return;
+            }
+
+            HashMap<String, String> configData = getConfigData(initDirPathString);
+            CommentStore store = CommentStore.open(initDirPathString, configData);
+
+            if(store == null){
+                return;
+            }
+
+            save(initDirPathString, configData, store, FileManifest.load(initDirPathString), isStatsEnabled, savePaths);
+
+        }
+        else if (command == Command.READ){
+
+            if(args.length < 2){
+                System.out.println("Expected at least 2 arguments!");
+                return;
+            }
+
+            try {
+                dirs = getDirsInCurrentDir(currentDir);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            if(!isRootDirInitialized(dirs)){
+                System.out.println("This directory is not initialized! Initialize this directory with the command \"anchor init\" ");
+                return;
+            }
+
+            if(AnchorDaemon.forward(initDirPathString, args)){
+                return;
+            }
+
+            CommentStore store = CommentStore.open(initDirPathString, getConfigData(initDirPathString));
+
+            if(store == null){
+                return;
+            }
+
+            read(initDirPathString, Arrays.asList(args).subList(1, args.length), store);
+
+        }
+        else if (command == Command.WATCH){
+
             if(args.length != 1){
-                System.out.println("Expected no extra arguments for \"save\" command!");
+                System.out.println("Expected no extra arguments for \"watch\" command!");
                 return;
             }
 
@@ -587,42 +1379,255 @@ public class Anchor {
                 return;
             }
 
-            List<String> targetFiles = getTargetFilePaths(initDirPathString);
-            String metaPathString = initDirPathString + "\\metadata.txt";
-            String dataPathString = initDirPathString + "\\data.txt";
-            List<String> fileContent;
-            HashMap<String, String> anchorData = new HashMap<String, String>();
-            HashMap<String, String> anchorOptions = new HashMap<String, String>();
+            HashMap<String, String> configData = getConfigData(initDirPathString);
+            List<TargetFileWalker> walkers = getTargetFileWalkers(configData);
 
-            for(String targetFile : targetFiles){
+            if(walkers == null){
+                return;
+            }
 
-                fileContent = getFileContent(targetFile);
+            CommentStore store = CommentStore.open(initDirPathString, configData);
 
-                if(fileContent == null || fileContent.isEmpty()){
-                    continue;
+            if(store == null){
+                return;
+            }
+
+            new AnchorWatcher(initDirPathString, walkers, FileManifest.load(initDirPathString), store, getParallelism(configData)).run();
+
+        }
+        else if (command == Command.LIST){
+
+            try {
+                dirs = getDirsInCurrentDir(currentDir);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            if(!isRootDirInitialized(dirs)){
+                System.out.println("This directory is not initialized! Initialize this directory with the command \"anchor init\" ");
+                return;
+            }
+
+            if(AnchorDaemon.forward(initDirPathString, args)){
+                return;
+            }
+
+            CommentStore store = CommentStore.open(initDirPathString, getConfigData(initDirPathString));
+
+            if(store == null){
+                return;
+            }
+
+            list(Arrays.asList(args).subList(1, args.length), store, FileManifest.load(initDirPathString));
+
+        }
+        else if (command == Command.LOCATE){
+
+            try {
+                dirs = getDirsInCurrentDir(currentDir);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            if(!isRootDirInitialized(dirs)){
+                System.out.println("This directory is not initialized! Initialize this directory with the command \"anchor init\" ");
+                return;
+            }
+
+            if(AnchorDaemon.forward(initDirPathString, args)){
+                return;
+            }
+
+            locate(Arrays.asList(args).subList(1, args.length), FileManifest.load(initDirPathString));
+
+        }
+        else if (command == Command.HISTORY){
+
+            if(args.length != 2){
+                System.out.println("Expected a single id for \"history\" command!");
+                return;
+            }
+
+            try {
+                dirs = getDirsInCurrentDir(currentDir);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            if(!isRootDirInitialized(dirs)){
+                System.out.println("This directory is not initialized! Initialize this directory with the command \"anchor init\" ");
+                return;
+            }
+
+            if(AnchorDaemon.forward(initDirPathString, args)){
+                return;
+            }
+
+            history(initDirPathString, args[1]);
+
+        }
+        else if (command == Command.RESTORE){
+
+            try {
+                dirs = getDirsInCurrentDir(currentDir);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            if(!isRootDirInitialized(dirs)){
+                System.out.println("This directory is not initialized! Initialize this directory with the command \"anchor init\" ");
+                return;
+            }
+
+            HashMap<String, String> configData = getConfigData(initDirPathString);
+
+            if(configData == null || !configData.containsKey("targetDir")){
+                System.out.println("Configuration does not contain targetDir key!");
+                return;
+            }
+
+            CommentStore store = CommentStore.open(initDirPathString, configData);
+
+            if(store == null){
+                return;
+            }
+
+            AnchorRestorer restorer = new AnchorRestorer(FileManifest.load(initDirPathString), store, getParallelism(configData));
+
+            // restores every target directory unless a file or directory is given
+            if(args.length == 1){
+
+                List<Path> restorePaths = new ArrayList<Path>();
+
+                for(int root = 0; root < AnchorConfig.getRootCount(configData); root++){
+                    restorePaths.add(Paths.get(configData.get(AnchorConfig.getRootKey("targetDir", root))).toAbsolutePath().normalize());
                 }
 
-                extractAnchorComments(fileContent, anchorData, anchorOptions);
+                restorer.restore(restorePaths);
+                return;
+
+            }
+
+            Path restorePath = Paths.get(args[1]).toAbsolutePath().normalize();
+
+            if(!Files.exists(restorePath)){
+                System.out.println("Provided path does not exist!");
+                return;
+            }
+
+            restorer.restore(restorePath);
+
+        }
+        else if (command == Command.EXPORT || command == Command.IMPORT){
+
+            boolean isImport = command == Command.IMPORT;
+
+            if(args.length < 2 || args.length > (isImport ? 3 : 2)){
+                System.out.println(isImport ? "Expected an archive path, optionally followed by -a, -u or -r, for \"import\" command!" : "Expected an archive path for \"export\" command!");
+                return;
+            }
+
+            // imported comments are stored as if saved from markers with this option, appended by default
+            String option = args.length == 3 ? args[2] : "";
+
+            if(!option.isEmpty() && !option.equals("-a") && !option.equals("-u") && !option.equals("-r")){
+                System.out.println("Invalid option provided for import : " + option);
+                return;
+            }
+
+            try {
+                dirs = getDirsInCurrentDir(currentDir);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            if(!isRootDirInitialized(dirs)){
+                System.out.println("This directory is not initialized! Initialize this directory with the command \"anchor init\" ");
+                return;
+            }
+
+            CommentStore store = CommentStore.open(initDirPathString, getConfigData(initDirPathString));
+
+            if(store == null){
+                return;
+            }
+
+            Path archivePath = Paths.get(args[1]).toAbsolutePath().normalize();
+
+            if(isImport && !Files.exists(archivePath)){
+                System.out.println("Provided archive does not exist!");
+                return;
+            }
+
+            int count = isImport ? CommentArchive.importInto(archivePath, option, plan -> writePlan(initDirPathString, store, plan, new SaveStats()))
+                    : CommentArchive.export(store, archivePath);
+
+            if(count != -1){
+                System.out.println((isImport ? "Imported " : "Exported ") + count + " comment(s) " + (isImport ? "from " : "to ") + archivePath);
+            }
+
+        }
+        else if (command == Command.GC){
+
+            boolean isDryRun = false;
+            Path archivePath = null;
 
-                if(writeUpdatedFile(targetFile, fileContent) != 1){
-                    System.out.println("Failed updating source code file after anchor comments were extracted!");
+            for(int i = 1; i < args.length; i++){
+                if(args[i].equals("--dry-run")){
+                    isDryRun = true;
+                }
+                else if(args[i].equals("--archive") && i + 1 < args.length){
+                    archivePath = Paths.get(args[++i]).toAbsolutePath().normalize();
+                }
+                else{
+                    System.out.println("Expected --dry-run, or --archive followed by an archive path, for \"gc\" command!");
                     return;
                 }
+            }
+
+            try {
+                dirs = getDirsInCurrentDir(currentDir);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            if(!isRootDirInitialized(dirs)){
+                System.out.println("This directory is not initialized! Initialize this directory with the command \"anchor init\" ");
+                return;
+            }
+
+            HashMap<String, String> configData = getConfigData(initDirPathString);
+
+            if(configData == null){
+                return;
+            }
+
+            CommentStore store = CommentStore.open(initDirPathString, configData);
 
+            if(store == null){
+                return;
             }
 
-            if(writeDataToFile(initDirPathString, anchorData, anchorOptions) == -1){
-                System.out.println("Failed writing data to file!");
+            List<String> targetFiles = getTargetFilePaths(configData);
+
+            if(targetFiles == null){
                 return;
             }
 
-            System.out.println("Successfully saved comments!");
+            new AnchorCollector(initDirPathString, store, getParallelism(configData)).collect(targetFiles, isDryRun, archivePath);
 
         }
-        else if (command == Command.READ){
+        else if (command == Command.DAEMON){
 
-            if(args.length != 2){
-                System.out.println("Expected 2 arguments!");
+            if(args.length == 2 && args[1].equals("stop")){
+                if(!AnchorDaemon.forward(initDirPathString, args)){
+                    System.out.println("No anchor daemon is running for this directory!");
+                }
+                return;
+            }
+
+            if(args.length != 1){
+                System.out.println("Expected no extra arguments other than \"stop\" for \"daemon\" command!");
                 return;
             }
 
@@ -637,11 +1642,33 @@ public class Anchor {
                 return;
             }
 
-            readStoredData(args[1], initDirPathString);
+            new AnchorDaemon(initDirPathString).run();
 
         }
-        else{
-            System.out.println("Invalid command!");
+        else if (command == Command.SEARCH){
+
+            if(args.length < 2){
+                System.out.println("Expected at least 2 arguments!");
+                return;
+            }
+
+            try {
+                dirs = getDirsInCurrentDir(currentDir);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            if(!isRootDirInitialized(dirs)){
+                System.out.println("This directory is not initialized! Initialize this directory with the command \"anchor init\" ");
+                return;
+            }
+
+            if(AnchorDaemon.forward(initDirPathString, args)){
+                return;
+            }
+
+            search(initDirPathString, String.join(" ", Arrays.asList(args).subList(1, args.length)));
+
         }
 
     }
@@ -0,0 +1,243 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32C;
+
+/*
+
+    Implements "anchor gc", which removes the stored comments of anchors whose markers are no longer in any target
+    file, e.g. once a marker has been deleted from the source:
+        anchor gc                     removes every unreferenced comment
+        anchor gc --dry-run           lists the unreferenced comments without removing them
+        anchor gc --archive FILE      exports the unreferenced comments to an archive before removing them
+
+    The target files are scanned once, in parallel, for the ids of their anchor markers, which are added to a Bloom
+    filter sized from the number of stored comments rather than kept as strings. A Bloom filter never reports an
+    id it was given as missing, so a comment is only removed if its marker was definitely not found. A false
+    positive merely keeps an unreferenced comment until the next collection.
+
+    Removals are written as a save would write them, so they are dropped from the search index, and their previous
+    versions stay in the comment history.
+
+ */
+class AnchorCollector {
+
+    private static final int BITS_PER_ID = 10;
+    private static final int HASH_COUNT = 7; // about 1% false positives at BITS_PER_ID
+
+    // Bloom filter of anchor ids, which can be added to concurrently.
+    private static class IdFilter {
+
+        private final AtomicLongArray bits;
+        private final long bitCount;
+
+        IdFilter(long expectedCount){
+            this.bits = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE - 8, (Math.max(expectedCount, 1024) * BITS_PER_ID + 63) / 64));
+            this.bitCount = (long) bits.length() * 64;
+        }
+
+        void add(String commentId){
+
+            long hash = getHash(commentId);
+
+            for(int i = 0; i < HASH_COUNT; i++){
+                long bit = getBit(hash, i);
+                bits.getAndAccumulate((int) (bit >>> 6), 1L << bit, (current, mask) -> current | mask);
+            }
+
+        }
+
+        boolean mightContain(String commentId){
+
+            long hash = getHash(commentId);
+
+            for(int i = 0; i < HASH_COUNT; i++){
+                long bit = getBit(hash, i);
+                if((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0){
+                    return false;
+                }
+            }
+
+            return true;
+
+        }
+
+        // Derives the bit of each probe from the hash, by double hashing with its high half as the step.
+        private long getBit(long hash, int probe){
+            return Math.floorMod(hash + probe * ((hash >>> 32) | 1), bitCount);
+        }
+
+        // 64 bit FNV-1a
+        private static long getHash(String commentId){
+
+            long hash = 0xcbf29ce484222325L;
+
+            for(int i = 0; i < commentId.length(); i++){
+                hash ^= commentId.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+
+            return hash;
+
+        }
+
+    }
+
+    private final String initDirPathString;
+    private final CommentStore store;
+    private final int parallelism;
+
+    AnchorCollector(String initDirPathString, CommentStore store, int parallelism){
+        this.initDirPathString = initDirPathString;
+        this.store = store;
+        this.parallelism = parallelism;
+    }
+
+    // Removes, or with isDryRun only lists, the stored comments without a marker in the target files. Comments are
+    // exported to the archive before being removed, unless archivePath is null. Returns 1 on success, -1 on failure.
+    public int collect(List<String> targetFiles, boolean isDryRun, Path archivePath){
+
+        long[] storedCount = {0};
+
+        if(store.list(null, listing -> {
+            storedCount[0]++;
+            return true;
+        }) == -1){
+            return -1;
+        }
+
+        IdFilter liveIds = new IdFilter(storedCount[0]);
+
+        if(scan(targetFiles, liveIds) == -1){
+            System.out.println("No comments were removed.");
+            return -1;
+        }
+
+        ArrayList<String> unreferencedIds = new ArrayList<String>();
+
+        if(store.list(null, listing -> {
+            if(!liveIds.mightContain(listing.commentId)){
+                unreferencedIds.add(listing.commentId);
+            }
+            return true;
+        }) == -1){
+            return -1;
+        }
+
+        if(unreferencedIds.isEmpty()){
+            System.out.println("No unreferenced comments found.");
+            return 1;
+        }
+
+        if(isDryRun){
+            for(String commentId : unreferencedIds){
+                System.out.println(Anchor.getShortId(commentId));
+            }
+            System.out.println("Found " + unreferencedIds.size() + " unreferenced comment(s) out of " + storedCount[0] + ".");
+            return 1;
+        }
+
+        if(archivePath != null){
+
+            HashSet<String> archivedIds = new HashSet<String>(unreferencedIds);
+
+            if(CommentArchive.export(store, archivePath, archivedIds::contains) == -1){
+                System.out.println("No comments were removed.");
+                return -1;
+            }
+
+            System.out.println("Archived " + unreferencedIds.size() + " unreferenced comment(s) to " + archivePath);
+        }
+
+        WritePlan plan = new WritePlan();
+
+        for(String commentId : unreferencedIds){
+            plan.add(commentId, new WritePlan.Op(WritePlan.Kind.DELETE, null));
+        }
+
+        if(Anchor.writePlan(initDirPathString, store, plan, new SaveStats()) == -1){
+            return -1;
+        }
+
+        System.out.println("Removed " + unreferencedIds.size() + " unreferenced comment(s) out of " + storedCount[0] + ".");
+
+        return 1;
+
+    }
+
+    // Adds the id of every anchor marker in the target files to liveIds. Fails if any target file cannot be read,
+    // since the markers it holds would be missed.
+    private int scan(List<String> targetFiles, IdFilter liveIds){
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+
+        try{
+
+            ArrayList<Future<Boolean>> scans = new ArrayList<Future<Boolean>>();
+
+            for(String targetFile : targetFiles){
+                scans.add(executor.submit(() -> scanFile(Paths.get(targetFile), liveIds)));
+            }
+
+            int status = 1;
+
+            for(int i = 0; i < scans.size(); i++){
+                if(!scans.get(i).get()){
+                    System.out.println("Failed scanning target file : " + targetFiles.get(i));
+                    status = -1;
+                }
+            }
+
+            return status;
+
+        } catch(Exception e){
+            System.out.println("Failed scanning target files!");
+            System.out.println(e);
+            return -1;
+        } finally{
+            executor.shutdown();
+        }
+
+    }
+
+    private static boolean scanFile(Path filePath, IdFilter liveIds){
+
+        try{
+
+            if(!Files.exists(filePath) || !Anchor.containsAnchorMarker(filePath, new CRC32C())){
+                return true; // deleted since the target files were listed, or without any anchors
+            }
+
+            try(BufferedReader reader = Files.newBufferedReader(filePath)){
+
+                String line = reader.readLine();
+
+                while(line != null){
+
+                    String anchorKey = Anchor.getAnchorKey(line);
+
+                    if(anchorKey != null){
+                        liveIds.add(anchorKey);
+                    }
+
+                    line = reader.readLine();
+                }
+
+            }
+
+            return true;
+
+        } catch(IOException | RuntimeException e){
+            System.out.println(e);
+            return false;
+        }
+
+    }
+
+}
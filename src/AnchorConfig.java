@@ -0,0 +1,279 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/*
+
+    Loads .anchor\config.txt, which holds a key=value setting per line. Lines which are blank or start with # are
+    ignored, and only the first = of a line separates its key from its value, so values may contain = themselves.
+
+    A config may list several target directories, which are all saved in a single pass. Each targetDir line starts
+    a root, and the targetExtension and exclude lines after it apply to that root only. Those given before the first
+    targetDir apply to every root which does not give its own:
+        targetExtension=.java
+        exclude=.git/, build/
+        targetDir=C:\code\service
+        targetDir=C:\code\web
+        targetExtension=.ts, .tsx
+        storage=packed
+
+    The other settings, storage, compression, dictionary and parallelism, apply to the whole config wherever they
+    are given. Unknown keys are ignored with a warning, while duplicate keys and invalid values fail the load.
+
+    The config is returned as a map of each setting, in which the settings of the first root keep their plain keys,
+    e.g. "targetDir", and those of the nth root are suffixed with its number, e.g. "targetDir.2". Once validated, the
+    map is written to .anchor\config.bin along with the modification time and size of config.txt, and is read back
+    from there rather than parsed again until config.txt changes. The snapshot is laid out as:
+        {magic : 4} {version : 1} {config modified millis : 8} {config size : 8} {entry count : 4}
+        {key length : 2} {key} {value length : 4} {value}       an entry per setting, UTF-8
+
+ */
+class AnchorConfig {
+
+    private static final int SNAPSHOT_MAGIC = 0x414E4346;
+    private static final byte SNAPSHOT_VERSION = 1;
+
+    private static final List<String> ROOT_KEYS = Arrays.asList("targetDir", "targetExtension", "exclude");
+    private static final List<String> GLOBAL_KEYS = Arrays.asList("storage", "compression", "dictionary", "parallelism");
+
+    // Returns the settings of the config, or null if it cannot be read or is invalid.
+    static HashMap<String, String> load(String initDirPathString){
+
+        Path configPath = Path.of(initDirPathString + "\\config.txt");
+        Path snapshotPath = Path.of(initDirPathString + "\\config.bin");
+        long modifiedMillis;
+        long size;
+
+        try{
+            BasicFileAttributes attributes = Files.readAttributes(configPath, BasicFileAttributes.class);
+            modifiedMillis = attributes.lastModifiedTime().toMillis();
+            size = attributes.size();
+        } catch(IOException e){
+            System.out.println("Error reading config data from config file!");
+            System.out.println(e);
+            return null;
+        }
+
+        HashMap<String, String> configData = readSnapshot(snapshotPath, modifiedMillis, size);
+
+        if(configData != null){
+            return configData;
+        }
+
+        try{
+            configData = parse(Files.readAllLines(configPath, StandardCharsets.UTF_8));
+        } catch(IOException e){
+            System.out.println("Error reading config data from config file!");
+            System.out.println(e);
+            return null;
+        }
+
+        if(configData != null){
+            writeSnapshot(snapshotPath, modifiedMillis, size, configData);
+        }
+
+        return configData;
+
+    }
+
+    // Returns the number of target directories in the settings.
+    static int getRootCount(HashMap<String, String> configData){
+
+        int rootCount = 0;
+
+        while(configData.containsKey(getRootKey("targetDir", rootCount))){
+            rootCount++;
+        }
+
+        return rootCount;
+
+    }
+
+    // Returns the key of a root's setting, given the index of the root, counting from 0.
+    static String getRootKey(String key, int root){
+        return root == 0 ? key : key + "." + (root + 1);
+    }
+
+    private static HashMap<String, String> parse(List<String> lines){
+
+        HashMap<String, String> configData = new HashMap<String, String>();
+        HashMap<String, String> defaults = new HashMap<String, String>();
+        List<HashMap<String, String>> roots = new ArrayList<HashMap<String, String>>();
+        List<Integer> rootLineNumbers = new ArrayList<Integer>();
+
+        for(int i = 0; i < lines.size(); i++){
+
+            String line = lines.get(i).trim();
+            int lineNumber = i + 1;
+
+            if(line.isEmpty() || line.startsWith("#")){
+                continue;
+            }
+
+            int separatorIndex = line.indexOf('=');
+
+            if(separatorIndex <= 0){
+                System.out.println("Error parsing line " + lineNumber + " of config file, expected key=value : " + line);
+                return null;
+            }
+
+            String key = line.substring(0, separatorIndex).trim();
+            String value = line.substring(separatorIndex + 1).trim();
+            HashMap<String, String> settings;
+
+            if(key.equals("targetDir")){
+                roots.add(new HashMap<String, String>());
+                rootLineNumbers.add(lineNumber);
+                settings = roots.get(roots.size() - 1);
+            }
+            else if(ROOT_KEYS.contains(key)){
+                settings = roots.isEmpty() ? defaults : roots.get(roots.size() - 1);
+            }
+            else if(GLOBAL_KEYS.contains(key)){
+                settings = configData;
+            }
+            else{
+                System.out.println("Ignoring unknown key on line " + lineNumber + " of config file : " + key);
+                continue;
+            }
+
+            if(settings.containsKey(key)){
+                System.out.println("Duplicate " + key + " key on line " + lineNumber + " of config file!");
+                return null;
+            }
+
+            if(validate(key, value) == -1){
+                System.out.println("Invalid " + key + " value on line " + lineNumber + " of config file : " + value);
+                return null;
+            }
+
+            settings.put(key, value);
+
+        }
+
+        if(roots.isEmpty()){
+            System.out.println("Configuration does not contain targetDir key!");
+            return null;
+        }
+
+        for(int root = 0; root < roots.size(); root++){
+
+            HashMap<String, String> settings = roots.get(root);
+
+            for(String key : ROOT_KEYS){
+
+                String value = settings.containsKey(key) ? settings.get(key) : defaults.get(key);
+
+                if(value != null){
+                    configData.put(getRootKey(key, root), value);
+                }
+
+            }
+
+            if(!configData.containsKey(getRootKey("targetExtension", root))){
+                System.out.println("Configuration does not contain targetExtension key for the targetDir on line " + rootLineNumbers.get(root) + "!");
+                return null;
+            }
+
+        }
+
+        return configData;
+
+    }
+
+    // Returns 1 if the value is valid for the key, -1 otherwise.
+    private static int validate(String key, String value){
+
+        switch(key){
+            case "targetDir":
+            case "targetExtension":
+                return value.isEmpty() ? -1 : 1;
+            case "storage":
+                return Arrays.asList("files", "packed", "dedup").contains(value) ? 1 : -1;
+            case "compression":
+                return Arrays.asList("none", "deflate").contains(value) ? 1 : -1;
+            case "dictionary":
+                return Arrays.asList("true", "false").contains(value) ? 1 : -1;
+            case "parallelism":
+                try{
+                    return Integer.parseInt(value) > 0 ? 1 : -1;
+                } catch(NumberFormatException e){
+                    return -1;
+                }
+            default:
+                return 1;
+        }
+
+    }
+
+    // Returns the settings of the snapshot, or null if there is none for this version of config.txt.
+    private static HashMap<String, String> readSnapshot(Path snapshotPath, long modifiedMillis, long size){
+
+        try(DataInputStream snapshotStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))){
+
+            if(snapshotStream.readInt() != SNAPSHOT_MAGIC || snapshotStream.readByte() != SNAPSHOT_VERSION
+                    || snapshotStream.readLong() != modifiedMillis || snapshotStream.readLong() != size){
+                return null;
+            }
+
+            int entryCount = snapshotStream.readInt();
+            HashMap<String, String> configData = new HashMap<String, String>();
+
+            for(int i = 0; i < entryCount; i++){
+
+                byte[] keyBytes = new byte[snapshotStream.readUnsignedShort()];
+                snapshotStream.readFully(keyBytes);
+                byte[] valueBytes = new byte[snapshotStream.readInt()];
+                snapshotStream.readFully(valueBytes);
+
+                configData.put(new String(keyBytes, StandardCharsets.UTF_8), new String(valueBytes, StandardCharsets.UTF_8));
+            }
+
+            return configData;
+
+        } catch(IOException | RuntimeException e){
+            return null; // missing or incomplete, so config.txt is parsed again
+        }
+
+    }
+
+    private static void writeSnapshot(Path snapshotPath, long modifiedMillis, long size, HashMap<String, String> configData){
+
+        Path tempPath = Path.of(snapshotPath + ".tmp");
+
+        try{
+
+            try(DataOutputStream snapshotStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))){
+
+                snapshotStream.writeInt(SNAPSHOT_MAGIC);
+                snapshotStream.writeByte(SNAPSHOT_VERSION);
+                snapshotStream.writeLong(modifiedMillis);
+                snapshotStream.writeLong(size);
+                snapshotStream.writeInt(configData.size());
+
+                for(Map.Entry<String, String> entry : configData.entrySet()){
+                    byte[] keyBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    byte[] valueBytes = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                    snapshotStream.writeShort(keyBytes.length);
+                    snapshotStream.write(keyBytes);
+                    snapshotStream.writeInt(valueBytes.length);
+                    snapshotStream.write(valueBytes);
+                }
+
+            }
+
+            Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } catch(IOException e){
+            // the snapshot only saves parsing config.txt again, so the loaded config is still used
+            try{
+                Files.deleteIfExists(tempPath);
+            } catch(IOException ignored){
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,252 @@
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/*
+
+    Implements "anchor daemon", a resident process which serves save, read, search, list, locate and history commands
+    for the CLI, so they run in an already started and warmed up JVM. The daemon listens on a Unix domain socket at
+    .anchor\daemon.sock, and keeps the config, file manifest and comment store open between commands. Each of them
+    is reloaded when its files are changed by another process, e.g. by "anchor watch".
+
+    A command is sent as the number of arguments followed by each argument, and everything the daemon prints while
+    running it is streamed back until the connection is closed. Commands are run one at a time, as they would be by
+    separate processes. The CLI runs commands in process whenever no daemon can be reached.
+
+        anchor daemon          runs the daemon until stopped
+        anchor daemon stop     stops a running daemon
+
+ */
+class AnchorDaemon {
+
+    private final String initDirPathString;
+    private HashMap<String, String> configData;
+    private FileManifest manifest;
+    private CommentStore store;
+    private long configStamp = 0;
+    private long manifestStamp = 0;
+    private long storeStamp = 0;
+
+    AnchorDaemon(String initDirPathString){
+        this.initDirPathString = initDirPathString;
+    }
+
+    static Path getSocketPath(String initDirPathString){
+        return Path.of(initDirPathString + "\\daemon.sock");
+    }
+
+    /*
+
+        Sends a command to the daemon of the init directory and prints its output. Returns false, without printing
+        anything, if no daemon is running, in which case the command should be run in process.
+
+     */
+    static boolean forward(String initDirPathString, String[] args){
+
+        Path socketPath = getSocketPath(initDirPathString);
+
+        if(!Files.exists(socketPath)){
+            return false;
+        }
+
+        SocketChannel channel;
+
+        try{
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+        } catch(IOException e){
+            return false; // socket left behind by a daemon which did not shut down cleanly
+        }
+
+        try(channel){
+
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+
+            request.writeInt(args.length);
+            for(String arg : args){
+                request.writeUTF(arg);
+            }
+            request.flush();
+
+            Channels.newInputStream(channel).transferTo(System.out);
+            System.out.flush();
+
+        } catch(IOException e){
+            System.out.println("Lost connection to anchor daemon!");
+            System.out.println(e);
+        }
+
+        return true;
+
+    }
+
+    public int run(){
+
+        Path socketPath = getSocketPath(initDirPathString);
+
+        if(Files.exists(socketPath)){
+
+            try{
+                SocketChannel.open(UnixDomainSocketAddress.of(socketPath)).close();
+                System.out.println("An anchor daemon is already running for this directory!");
+                return -1;
+            } catch(IOException e){
+                deleteSocket(socketPath); // stale socket
+            }
+
+        }
+
+        try(ServerSocketChannel serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX)){
+
+            serverChannel.bind(UnixDomainSocketAddress.of(socketPath));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> deleteSocket(socketPath)));
+
+            System.out.println("Anchor daemon listening on " + socketPath);
+
+            boolean isRunning = true;
+
+            while(isRunning){
+                try(SocketChannel channel = serverChannel.accept()){
+                    isRunning = handle(channel);
+                } catch(IOException e){
+                    System.out.println("Failed handling daemon request!");
+                    System.out.println(e);
+                }
+            }
+
+        } catch(IOException e){
+            System.out.println("Failed starting anchor daemon!");
+            System.out.println(e);
+            return -1;
+        } finally{
+            deleteSocket(socketPath);
+        }
+
+        System.out.println("Anchor daemon stopped.");
+
+        return 1;
+
+    }
+
+    // Runs a single command, with its output sent back over the channel. Returns false once the daemon should stop.
+    private boolean handle(SocketChannel channel) throws IOException {
+
+        DataInputStream request = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        String[] args = new String[request.readInt()];
+
+        for(int i = 0; i < args.length; i++){
+            args[i] = request.readUTF();
+        }
+
+        PrintStream standardOut = System.out;
+        PrintStream response = new PrintStream(new BufferedOutputStream(Channels.newOutputStream(channel)), false, StandardCharsets.UTF_8);
+
+        System.setOut(response);
+
+        try{
+
+            if(args.length == 2 && args[0].equals("daemon") && args[1].equals("stop")){
+                System.out.println("Stopping anchor daemon.");
+                return false;
+            }
+
+            run(args);
+
+        } catch(RuntimeException e){
+            System.out.println("Error running command in anchor daemon!");
+            System.out.println(e);
+        } finally{
+            response.flush();
+            System.setOut(standardOut);
+        }
+
+        return true;
+
+    }
+
+    private void run(String[] args){
+
+        if(refresh() == -1){
+            return;
+        }
+
+        switch(args[0].toLowerCase()){
+            case "save":
+                List<String> savePaths = Anchor.getSavePaths(Arrays.asList(args).subList(1, args.length));
+                if(savePaths != null){
+                    Anchor.save(initDirPathString, configData, store, manifest, Arrays.asList(args).contains("--stats"), savePaths);
+                }
+                manifestStamp = getStamp("manifest.txt");
+                break;
+            case "read":
+                Anchor.read(initDirPathString, Arrays.asList(args).subList(1, args.length), store);
+                break;
+            case "search":
+                Anchor.search(initDirPathString, String.join(" ", Arrays.asList(args).subList(1, args.length)));
+                break;
+            case "list":
+                Anchor.list(Arrays.asList(args).subList(1, args.length), store, manifest);
+                break;
+            case "locate":
+                Anchor.locate(Arrays.asList(args).subList(1, args.length), manifest);
+                break;
+            case "history":
+                Anchor.history(initDirPathString, args[1]);
+                break;
+            default:
+                System.out.println("Command is not supported by the anchor daemon : " + args[0]);
+        }
+
+    }
+
+    // Reloads whichever of the config, manifest and comment store were changed since they were last loaded.
+    private int refresh(){
+
+        long currentConfigStamp = getStamp("config.txt");
+        long currentStoreStamp = getStamp("index.bin") ^ getStamp("store.log") ^ getStamp("refs.bin") ^ getStamp("dictionary.bin");
+        long currentManifestStamp = getStamp("manifest.txt");
+
+        if(configData == null || currentConfigStamp != configStamp){
+            configData = Anchor.getConfigData(initDirPathString);
+            configStamp = currentConfigStamp;
+            store = null;
+        }
+
+        if(store == null || currentStoreStamp != storeStamp){
+            store = CommentStore.open(initDirPathString, configData);
+            storeStamp = currentStoreStamp;
+        }
+
+        if(manifest == null || currentManifestStamp != manifestStamp){
+            manifest = FileManifest.load(initDirPathString);
+            manifestStamp = currentManifestStamp;
+        }
+
+        return store == null ? -1 : 1;
+
+    }
+
+    // Identifies the version of a file in the init directory by its modification time and size, 0 if it does not exist.
+    private long getStamp(String fileName){
+
+        File file = new File(initDirPathString + "\\" + fileName);
+
+        return file.lastModified() * 31 + file.length();
+
+    }
+
+    private static void deleteSocket(Path socketPath){
+        try{
+            Files.deleteIfExists(socketPath);
+        } catch(IOException e){
+            System.out.println("Failed deleting daemon socket : " + socketPath);
+        }
+    }
+
+}
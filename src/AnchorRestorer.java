@@ -0,0 +1,196 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+
+    Implements "anchor restore [path]", which puts stored comment data back into the source files after their anchor
+    markers. Only files the manifest recorded anchor markers in are read, and all of their comment data is read from
+    the store up front, so the files themselves can then be rewritten concurrently.
+
+    A restored anchor is written with the -u option:
+        // [Anchor.Comment.ID] -u
+        /*
+            {Comment Data}
+        +/
+    so that saving the file again replaces the stored data rather than appending a second copy to it. Markers which
+    are already followed by a comment, or which have no stored data, are left as they are.
+
+ */
+class AnchorRestorer {
+
+    private static final String BODY_INDENT = "    ";
+
+    private final FileManifest manifest;
+    private final CommentStore store;
+    private final int parallelism;
+
+    AnchorRestorer(FileManifest manifest, CommentStore store, int parallelism){
+        this.manifest = manifest;
+        this.store = store;
+        this.parallelism = parallelism;
+    }
+
+    // Restores the anchors of every anchored file at or below restorePath. Returns 1 on success, -1 on failure.
+    public int restore(Path restorePath){
+        return restore(Collections.singletonList(restorePath));
+    }
+
+    // Restores the anchors of every anchored file at or below any of restorePaths.
+    public int restore(List<Path> restorePaths){
+
+        TreeMap<String, List<String>> anchoredFiles = manifest.getAnchoredFiles();
+        List<String> targetFiles = new ArrayList<String>();
+        HashSet<String> commentIds = new HashSet<String>();
+
+        for(Map.Entry<String, List<String>> entry : anchoredFiles.entrySet()){
+
+            Path filePath = Paths.get(entry.getKey());
+
+            for(Path restorePath : restorePaths){
+                if(filePath.startsWith(restorePath)){
+                    targetFiles.add(entry.getKey());
+                    commentIds.addAll(entry.getValue());
+                    break;
+                }
+            }
+
+        }
+
+        HashMap<String, String> anchorData = store.read(commentIds);
+
+        if(anchorData == null){
+            return -1;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        List<Future<Integer>> restorations = new ArrayList<Future<Integer>>(targetFiles.size());
+        int restoredCount = 0;
+        int fileCount = 0;
+        int status = 1;
+
+        try{
+
+            for(String targetFile : targetFiles){
+                restorations.add(executor.submit(() -> restoreFile(Paths.get(targetFile), anchorData)));
+            }
+
+            for(int i = 0; i < restorations.size(); i++){
+
+                int count = restorations.get(i).get();
+
+                if(count == -1){
+                    System.out.println("Failed restoring anchor comments to : " + targetFiles.get(i));
+                    status = -1;
+                }
+                else if(count > 0){
+                    restoredCount += count;
+                    fileCount++;
+                }
+
+            }
+
+        } catch(Exception e){
+            System.out.println("Error restoring anchor comments!");
+            System.out.println(e);
+            return -1;
+        } finally{
+            executor.shutdown();
+        }
+
+        System.out.println("Restored " + restoredCount + " anchor comment(s) in " + fileCount + " file(s).");
+
+        return status;
+
+    }
+
+    // Rewrites a single file with its anchors restored. Returns the number of anchors restored, or -1 on failure.
+    private static int restoreFile(Path sourcePath, HashMap<String, String> anchorData){
+
+        Path tempPath = sourcePath.resolveSibling("." + sourcePath.getFileName() + ".anchor-tmp");
+        int restoredCount = 0;
+
+        try(BufferedReader reader = Files.newBufferedReader(sourcePath);
+            BufferedWriter writer = Files.newBufferedWriter(tempPath)){
+
+            String line = reader.readLine();
+
+            while(line != null){
+
+                String nextLine = reader.readLine();
+
+                String anchorKey = Anchor.getAnchorKey(line);
+
+                if(anchorKey == null){
+                    writer.write(line);
+                    writer.newLine();
+                    line = nextLine;
+                    continue;
+                }
+
+                String anchorOption = Anchor.getAnchorOption(line);
+                String data = anchorData.get(anchorKey);
+
+                if(data == null || !anchorOption.isEmpty() || (nextLine != null && nextLine.contains("/*"))){
+                    writer.write(line);
+                    writer.newLine();
+                    line = nextLine;
+                    continue;
+                }
+
+                String indent = line.substring(0, line.length() - line.stripLeading().length());
+
+                writer.write(line.stripTrailing() + " -u");
+                writer.newLine();
+                writer.write(indent + "/*");
+                writer.newLine();
+
+                for(String dataLine : data.isEmpty() ? new String[0] : data.split("\n")){
+                    writer.write(dataLine.isEmpty() ? "" : indent + BODY_INDENT + dataLine);
+                    writer.newLine();
+                }
+
+                writer.write(indent + "*/");
+                writer.newLine();
+
+                restoredCount++;
+                line = nextLine;
+
+            }
+
+        } catch(IOException e){
+            System.out.println(e);
+            deleteTempFile(tempPath);
+            return -1;
+        }
+
+        if(restoredCount == 0){
+            deleteTempFile(tempPath);
+            return 0;
+        }
+
+        try{
+            Anchor.replaceSourceFile(sourcePath, tempPath);
+        } catch(IOException e){
+            System.out.println(e);
+            deleteTempFile(tempPath);
+            return -1;
+        }
+
+        return restoredCount;
+
+    }
+
+    private static void deleteTempFile(Path tempPath){
+        try{
+            Files.deleteIfExists(tempPath);
+        } catch(IOException e){
+            System.out.println("Failed deleting temporary file : " + tempPath);
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/*
+
+    Implements "anchor watch". Every directory under the target directories is registered with a WatchService, and when
+    files change, anchor comments are extracted from just those files and saved to the comment store.
+
+    Events are debounced: once an event arrives, further events are collected until none have arrived for
+    DEBOUNCE_MILLIS, so an editor writing a file in several steps results in a single save. A steady stream of events,
+    e.g. from a build writing into a watched directory, would postpone that forever, so a save also starts once
+    MAX_DEBOUNCE_MILLIS have passed since the first event, and later events are left queued for the next one. Files
+    rewritten by a save produce events of their own, which the manifest then reports as unchanged.
+
+ */
+class AnchorWatcher {
+
+    private static final long DEBOUNCE_MILLIS = 100;
+    private static final long MAX_DEBOUNCE_MILLIS = 1500;
+
+    private final String initDirPathString;
+    private final List<TargetFileWalker> walkers;
+    private final FileManifest manifest;
+    private final CommentStore store;
+    private final int parallelism;
+    private final HashMap<WatchKey, Path> watchedDirs = new HashMap<WatchKey, Path>();
+
+    AnchorWatcher(String initDirPathString, List<TargetFileWalker> walkers, FileManifest manifest, CommentStore store, int parallelism){
+        this.initDirPathString = initDirPathString;
+        this.walkers = walkers;
+        this.manifest = manifest;
+        this.store = store;
+        this.parallelism = parallelism;
+    }
+
+    public int run(){
+
+        try(WatchService watchService = FileSystems.getDefault().newWatchService()){
+
+            for(TargetFileWalker walker : walkers){
+                for(Path dir : walker.getDirectories(walker.getRootPath())){
+                    register(watchService, dir);
+                }
+            }
+
+            // bring the store up to date before waiting for changes
+            if(saveAll() == -1){
+                return -1;
+            }
+
+            System.out.println("Watching " + watchedDirs.size() + " directories for changes. Press Ctrl+C to stop.");
+
+            while(true){
+
+                LinkedHashSet<Path> changedFiles = new LinkedHashSet<Path>();
+                boolean isOverflowed = false;
+                WatchKey key = watchService.take();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_DEBOUNCE_MILLIS);
+
+                while(key != null){
+                    isOverflowed |= collectEvents(watchService, key, changedFiles);
+                    long remaining = deadline - System.nanoTime();
+                    key = remaining <= 0 ? null : watchService.poll(Math.min(TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MILLIS), remaining), TimeUnit.NANOSECONDS);
+                }
+
+                if(isOverflowed){
+                    saveAll(); // events were lost, so fall back to checking every file against the manifest
+                    continue;
+                }
+
+                List<String> targetFiles = new ArrayList<String>();
+
+                for(Path changedFile : changedFiles){
+
+                    TargetFileWalker walker = getWalker(changedFile);
+
+                    if(walker != null && walker.isTargetFile(changedFile) && Files.isRegularFile(changedFile)){
+                        targetFiles.add(changedFile.toString());
+                    }
+
+                }
+
+                if(!targetFiles.isEmpty() && Anchor.saveComments(initDirPathString, targetFiles, parallelism, manifest, store) == 1){
+                    System.out.println("Processed " + targetFiles.size() + " modified file(s).");
+                }
+
+            }
+
+        } catch(InterruptedException e){
+            return 1;
+        } catch(IOException e){
+            System.out.println("Failed watching target directory!");
+            System.out.println(e);
+            return -1;
+        }
+
+    }
+
+    // Adds the files of a key's events to changedFiles, registering any new directories. Returns true on overflow.
+    private boolean collectEvents(WatchService watchService, WatchKey key, Set<Path> changedFiles) throws IOException {
+
+        Path dir = watchedDirs.get(key);
+        boolean isOverflowed = false;
+
+        for(WatchEvent<?> event : key.pollEvents()){
+
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW){
+                isOverflowed = true;
+                continue;
+            }
+
+            if(dir == null){
+                continue;
+            }
+
+            Path changedPath = dir.resolve((Path) event.context());
+
+            TargetFileWalker walker = getWalker(changedPath);
+
+            if(walker != null && event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changedPath, LinkOption.NOFOLLOW_LINKS)){
+                for(Path newDir : walker.getDirectories(changedPath)){
+
+                    register(watchService, newDir);
+
+                    // files may have been written to the new directory before it was registered
+                    try(DirectoryStream<Path> newFiles = Files.newDirectoryStream(newDir)){
+                        for(Path newFile : newFiles){
+                            changedFiles.add(newFile);
+                        }
+                    }
+
+                }
+            }
+            else if(event.kind() != StandardWatchEventKinds.ENTRY_DELETE){
+                changedFiles.add(changedPath);
+            }
+
+        }
+
+        if(!key.reset()){
+            watchedDirs.remove(key);
+        }
+
+        return isOverflowed;
+
+    }
+
+    private void register(WatchService watchService, Path dir) throws IOException {
+        WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        watchedDirs.put(key, dir);
+    }
+
+    // Returns the walker of the innermost target directory the path is in, or null if it is in none.
+    private TargetFileWalker getWalker(Path path){
+
+        TargetFileWalker innermostWalker = null;
+
+        for(TargetFileWalker walker : walkers){
+            if(path.startsWith(walker.getRootPath()) && (innermostWalker == null || walker.getRootPath().startsWith(innermostWalker.getRootPath()))){
+                innermostWalker = walker;
+            }
+        }
+
+        return innermostWalker;
+
+    }
+
+    private int saveAll(){
+
+        List<String> targetFiles = TargetFileWalker.walk(walkers, parallelism);
+
+        if(targetFiles == null){
+            return -1;
+        }
+
+        manifest.retainAll(targetFiles);
+        return Anchor.saveComments(initDirPathString, targetFiles, parallelism, manifest, store);
+
+    }
+
+}
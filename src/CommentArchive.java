@@ -0,0 +1,214 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/*
+
+    Single file archive of the comment data of a store, written by "anchor export" and read by "anchor import", so a
+    store can be moved between machines as one file whichever storage engine it uses. The archive is laid out as:
+        {magic : 4} {version : 1}
+        {data} * entry count                                the data of every comment, UTF-8, in id order
+        {id length : 2} {id} {offset : 8} {length : 8}      an index entry per comment, in id order
+        {index offset : 8} {entry count : 4} {magic : 4}
+
+    Exporting copies the data of each comment into the archive with FileChannel.transferTo wherever the store keeps it
+    as is, and writes the index last, so only the ids of the comments are held in memory. Importing reads the data
+    back in batches of at most MAX_BATCH_SIZE bytes, and writes each batch to the store as the write plan of a save.
+
+ */
+class CommentArchive {
+
+    private static final int ARCHIVE_MAGIC = 0x414E4341;
+    private static final byte ARCHIVE_VERSION = 1;
+    private static final int HEADER_SIZE = 5;
+    private static final int TRAILER_SIZE = 16;
+    private static final long MAX_BATCH_SIZE = 16 * 1024 * 1024;
+
+    // Exports every comment of the store to the archive, replacing it. Returns the number of comments exported, or -1 on failure.
+    public static int export(CommentStore store, Path archivePath){
+        return export(store, archivePath, commentId -> true);
+    }
+
+    // Exports the comments of the store whose ids are accepted by isExported.
+    public static int export(CommentStore store, Path archivePath, Predicate<String> isExported){
+
+        Path tempPath = archivePath.resolveSibling(archivePath.getFileName() + ".tmp");
+        ArrayList<IdIndex.Entry> entries = new ArrayList<IdIndex.Entry>();
+
+        try(FileChannel archiveChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+
+            archiveChannel.write(ByteBuffer.allocate(HEADER_SIZE).putInt(ARCHIVE_MAGIC).put(ARCHIVE_VERSION).flip());
+
+            IOException[] failure = new IOException[1];
+
+            int status = store.list(null, listing -> {
+
+                if(!isExported.test(listing.commentId)){
+                    return true;
+                }
+
+                try{
+
+                    long offset = archiveChannel.position();
+                    long length = store.transferTo(listing.commentId, archiveChannel);
+
+                    if(length >= 0){
+                        entries.add(new IdIndex.Entry(listing.commentId, offset, length));
+                    }
+
+                    return true;
+
+                } catch(IOException e){
+                    failure[0] = e;
+                    return false;
+                }
+
+            });
+
+            if(failure[0] != null){
+                throw failure[0];
+            }
+
+            if(status == -1){
+                Files.deleteIfExists(tempPath);
+                return -1;
+            }
+
+            long indexOffset = archiveChannel.position();
+            DataOutputStream indexStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(archiveChannel), 64 * 1024));
+
+            for(IdIndex.Entry entry : entries){
+                byte[] idBytes = entry.commentId.getBytes(StandardCharsets.UTF_8);
+                indexStream.writeShort(idBytes.length);
+                indexStream.write(idBytes);
+                indexStream.writeLong(entry.offset);
+                indexStream.writeLong(entry.length);
+            }
+
+            indexStream.writeLong(indexOffset);
+            indexStream.writeInt(entries.size());
+            indexStream.writeInt(ARCHIVE_MAGIC);
+            indexStream.flush();
+
+        } catch(IOException e){
+            System.out.println("Failed writing comment archive!");
+            System.out.println(e);
+            try{
+                Files.deleteIfExists(tempPath);
+            } catch(IOException ignored){
+            }
+            return -1;
+        }
+
+        try{
+            Files.move(tempPath, archivePath, StandardCopyOption.REPLACE_EXISTING);
+        } catch(IOException e){
+            System.out.println("Failed replacing comment archive!");
+            System.out.println(e);
+            return -1;
+        }
+
+        return entries.size();
+
+    }
+
+    /*
+
+        Imports every comment of the archive as if it was saved from a marker with the given option, e.g. "-u" to
+        replace the data already stored. The comments are passed to writer in write plans of a bounded size. Returns
+        the number of comments imported, or -1 on failure.
+
+     */
+    public static int importInto(Path archivePath, String option, ToIntFunction<WritePlan> writer){
+
+        try(FileChannel archiveChannel = FileChannel.open(archivePath, StandardOpenOption.READ)){
+
+            long size = archiveChannel.size();
+
+            if(size < HEADER_SIZE + TRAILER_SIZE || readFully(archiveChannel, 0, HEADER_SIZE).getInt() != ARCHIVE_MAGIC){
+                System.out.println("Provided file is not an anchor archive!");
+                return -1;
+            }
+
+            if(readFully(archiveChannel, 4, 1).get() != ARCHIVE_VERSION){
+                System.out.println("Anchor archive has an unsupported format!");
+                return -1;
+            }
+
+            ByteBuffer trailer = readFully(archiveChannel, size - TRAILER_SIZE, TRAILER_SIZE);
+            long indexOffset = trailer.getLong();
+            int entryCount = trailer.getInt();
+
+            if(trailer.getInt() != ARCHIVE_MAGIC || indexOffset < HEADER_SIZE || indexOffset > size - TRAILER_SIZE){
+                System.out.println("Anchor archive is incomplete!");
+                return -1;
+            }
+
+            // the index is streamed from the channel's position, while comment data is read at its own offsets
+            DataInputStream indexStream = new DataInputStream(new BufferedInputStream(Channels.newInputStream(archiveChannel.position(indexOffset)), 64 * 1024));
+            WritePlan plan = new WritePlan();
+            long batchSize = 0;
+
+            for(int i = 0; i < entryCount; i++){
+
+                byte[] idBytes = new byte[indexStream.readUnsignedShort()];
+                indexStream.readFully(idBytes);
+                long offset = indexStream.readLong();
+                long length = indexStream.readLong();
+
+                if(offset < HEADER_SIZE || length > Integer.MAX_VALUE || offset + length > indexOffset){
+                    System.out.println("Anchor archive is corrupt!");
+                    return -1;
+                }
+
+                plan.add(new String(idBytes, StandardCharsets.UTF_8), option, new String(readFully(archiveChannel, offset, (int) length).array(), StandardCharsets.UTF_8));
+                batchSize += length;
+
+                if(batchSize >= MAX_BATCH_SIZE){
+                    if(writer.applyAsInt(plan) == -1){
+                        return -1;
+                    }
+                    plan.clear();
+                    batchSize = 0;
+                }
+
+            }
+
+            if(!plan.isEmpty() && writer.applyAsInt(plan) == -1){
+                return -1;
+            }
+
+            return entryCount;
+
+        } catch(IOException e){
+            System.out.println("Error reading comment archive!");
+            System.out.println(e);
+            return -1;
+        }
+
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer, position + buffer.position()) == -1){
+                throw new EOFException("Unexpected end of comment archive");
+            }
+        }
+
+        return buffer.flip();
+
+    }
+
+}
@@ -0,0 +1,304 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+
+    Deflate compression of comment data, enabled with "compression=deflate" in config.txt. Compressed data is a
+    sequence of chunks, each holding the data of a single write:
+        {compressed length : 4 bytes} {deflate stream}
+    so that appending to compressed data only needs to compress the appended text.
+
+    With "dictionary=true", a preset dictionary is trained from the stored comments once enough of them exist, and is
+    kept in .anchor\dictionary.bin. Comments tend to be short and to repeat the same phrases, which a deflate stream
+    of its own cannot make use of. A deflate stream records the checksum of the dictionary it was written with, so
+    data written before the dictionary was trained remains readable. The dictionary is trained once, with the store
+    locked, and moved into place whole, so other processes decoding with it never see a partially written file.
+
+ */
+class CommentCodec {
+
+    private static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+    private static final int MIN_TRAINING_SAMPLES = 32;
+    private static final int MIN_DICTIONARY_LINE_LENGTH = 8;
+    private static final int MAX_TRAINING_SAMPLES = 4096;
+
+    private final String initDirPathString;
+    private final Path dictionaryPath;
+    private final boolean isDictionaryEnabled;
+    private byte[] dictionary;
+    private boolean isDictionaryLoaded = false;
+
+    CommentCodec(String initDirPathString, boolean isDictionaryEnabled){
+        this.initDirPathString = initDirPathString;
+        this.dictionaryPath = Path.of(initDirPathString + "\\dictionary.bin");
+        this.isDictionaryEnabled = isDictionaryEnabled;
+    }
+
+    // Returns a single chunk holding the compressed data.
+    public byte[] compress(String data){
+
+        byte[] input = data.getBytes(StandardCharsets.UTF_8);
+        byte[] buffer = new byte[8192];
+        byte[] presetDictionary = isDictionaryEnabled ? getDictionary() : null;
+        ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 2 + 16);
+        Deflater deflater = new Deflater();
+
+        try{
+
+            if(presetDictionary != null){
+                deflater.setDictionary(presetDictionary);
+            }
+
+            deflater.setInput(input);
+            deflater.finish();
+
+            output.write(new byte[4], 0, 4); // chunk length, filled in once known
+
+            while(!deflater.finished()){
+                output.write(buffer, 0, deflater.deflate(buffer));
+            }
+
+        } finally{
+            deflater.end();
+        }
+
+        byte[] chunk = output.toByteArray();
+        ByteBuffer.wrap(chunk).putInt(chunk.length - 4);
+
+        return chunk;
+
+    }
+
+    // Decompresses and concatenates every chunk remaining in chunks.
+    public String decompress(ByteBuffer chunks) throws DataFormatException {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(chunks.remaining() * 3);
+        byte[] buffer = new byte[8192];
+        Inflater inflater = new Inflater();
+
+        try{
+
+            while(chunks.remaining() >= 4){
+
+                int length = chunks.getInt();
+
+                if(length < 0 || length > chunks.remaining()){
+                    throw new DataFormatException("Truncated compressed comment data");
+                }
+
+                inflater.reset();
+                inflater.setInput(chunks.slice(chunks.position(), length));
+                chunks.position(chunks.position() + length);
+
+                while(!inflater.finished()){
+
+                    int count = inflater.inflate(buffer);
+
+                    if(count == 0 && inflater.needsDictionary()){
+                        if(dictionary == null){
+                            isDictionaryLoaded = false; // another process may have trained it since it was looked for
+                        }
+                        byte[] presetDictionary = getDictionary();
+                        if(presetDictionary == null){
+                            throw new DataFormatException("Compressed comment data requires a missing dictionary : " + dictionaryPath);
+                        }
+                        try{
+                            inflater.setDictionary(presetDictionary);
+                        } catch(IllegalArgumentException e){
+                            throw new DataFormatException("Compressed comment data was written with a different dictionary");
+                        }
+                    }
+                    else if(count == 0 && inflater.needsInput()){
+                        throw new DataFormatException("Truncated compressed comment data");
+                    }
+
+                    output.write(buffer, 0, count);
+                }
+
+            }
+
+        } finally{
+            inflater.end();
+        }
+
+        return output.toString(StandardCharsets.UTF_8);
+
+    }
+
+    // True if dictionaries are enabled but none has been trained yet, by this or any other process.
+    public boolean isDictionaryNeeded(){
+
+        if(dictionary == null){
+            isDictionaryLoaded = false;
+        }
+
+        return isDictionaryEnabled && getDictionary() == null;
+
+    }
+
+    // Trains the preset dictionary from the data of a write plan and a sample of the data already in the store, unless
+    // one exists. The store is locked meanwhile, so that a dictionary trained by a concurrent save is used instead of
+    // replaced. Returns 1 if a dictionary was trained, 0 if none was needed or there is too little data, and -1 on failure.
+    public int trainDictionary(WritePlan plan, CommentStore store){
+
+        StoreLock storeLock = StoreLock.get(initDirPathString);
+
+        try(StoreLock.Held held = storeLock == null ? null : storeLock.lockStore()){
+
+            if(held == null){
+                return -1;
+            }
+
+            return isDictionaryNeeded() ? trainDictionary(getSamples(plan, store)) : 0;
+
+        }
+
+    }
+
+    private static ArrayList<String> getSamples(WritePlan plan, CommentStore store){
+
+        ArrayList<String> samples = new ArrayList<String>();
+
+        for(WritePlan.Op op : plan.getOps().values()){
+            if(op.data != null){
+                samples.add(op.data);
+            }
+        }
+
+        for(String commentId : store.getCommentIds("")){
+
+            if(samples.size() >= MAX_TRAINING_SAMPLES){
+                break;
+            }
+
+            String data = store.read(commentId);
+
+            if(data != null){
+                samples.add(data);
+            }
+
+        }
+
+        return samples;
+
+    }
+
+    /*
+
+        Trains the preset dictionary from a sample of comment data and saves it. Lines which repeat across the
+        samples are placed at the end of the dictionary, most valuable last since deflate encodes nearer matches in
+        fewer bits, and the space left is filled with the samples themselves. Returns 1 if a dictionary was
+        trained, 0 if there are too few samples to train one from, and -1 on failure. The dictionary is written to a
+        temporary file which then replaces dictionary.bin.
+
+     */
+    private int trainDictionary(Collection<String> samples){
+
+        if(samples.size() < MIN_TRAINING_SAMPLES){
+            return 0;
+        }
+
+        HashMap<String, Integer> lineCounts = new HashMap<String, Integer>();
+
+        for(String sample : samples){
+            for(String line : sample.split("\n")){
+                if(line.length() >= MIN_DICTIONARY_LINE_LENGTH){
+                    lineCounts.merge(line, 1, Integer::sum);
+                }
+            }
+        }
+
+        List<Map.Entry<String, Integer>> repeatedLines = new ArrayList<Map.Entry<String, Integer>>();
+
+        for(Map.Entry<String, Integer> entry : lineCounts.entrySet()){
+            if(entry.getValue() > 1){
+                repeatedLines.add(entry);
+            }
+        }
+
+        // most bytes saved first
+        repeatedLines.sort((a, b) -> Long.compare((long) b.getValue() * b.getKey().length(), (long) a.getValue() * a.getKey().length()));
+
+        ArrayDeque<byte[]> parts = new ArrayDeque<byte[]>();
+        int size = 0;
+
+        for(Map.Entry<String, Integer> entry : repeatedLines){
+
+            byte[] line = (entry.getKey() + "\n").getBytes(StandardCharsets.UTF_8);
+
+            if(size + line.length > MAX_DICTIONARY_SIZE){
+                break;
+            }
+
+            parts.addFirst(line);
+            size += line.length;
+        }
+
+        for(String sample : samples){
+
+            byte[] sampleBytes = sample.getBytes(StandardCharsets.UTF_8);
+
+            if(size + sampleBytes.length > MAX_DICTIONARY_SIZE){
+                break;
+            }
+
+            parts.addFirst(sampleBytes);
+            size += sampleBytes.length;
+        }
+
+        ByteBuffer trained = ByteBuffer.allocate(size);
+
+        for(byte[] part : parts){
+            trained.put(part);
+        }
+
+        Path tempPath = dictionaryPath.resolveSibling(dictionaryPath.getFileName() + ".tmp");
+
+        try{
+            Files.write(tempPath, trained.array());
+            Files.move(tempPath, dictionaryPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e){
+            System.out.println("Failed writing compression dictionary!");
+            System.out.println(e);
+            try{
+                Files.deleteIfExists(tempPath);
+            } catch(IOException ignored){
+            }
+            return -1;
+        }
+
+        dictionary = trained.array();
+        isDictionaryLoaded = true;
+
+        return 1;
+
+    }
+
+    private byte[] getDictionary(){
+
+        if(isDictionaryLoaded){
+            return dictionary;
+        }
+
+        try{
+            dictionary = Files.exists(dictionaryPath) ? Files.readAllBytes(dictionaryPath) : null;
+        } catch(IOException e){
+            System.out.println("Failed reading compression dictionary!");
+            System.out.println(e);
+            dictionary = null;
+        }
+
+        isDictionaryLoaded = true;
+        return dictionary;
+
+    }
+
+}
@@ -0,0 +1,432 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/*
+
+    Keeps every version of the stored comments, whichever storage engine holds their current data. Each save records a
+    new version of the comments whose data it changed, numbered from 1, in an append-only log, .anchor\history.log:
+        {magic : 4} {version : 1}, followed by records of the form:
+        {option : 1} {form : 1} {version : 4} {time : 8} {previous record offset : 8} {id length : 2} {id}
+        {data length : 4} {prefix length : 4} {suffix length : 4} {text length : 4} {text}
+
+    The option is the one the version was saved with, a, u or r, and the form is either s (snapshot) or d (delta). A
+    snapshot holds the whole data of the version as its text. A delta holds the data as a change to the previous
+    version: the previous data with everything between the first prefix length bytes and the last suffix length
+    bytes replaced by the text. Appending to a comment or editing part of it is therefore recorded in about as many
+    bytes as were changed. A removal is recorded as an empty snapshot.
+
+    Reading a version applies the deltas recorded since the last snapshot before it, so a snapshot is recorded every
+    SNAPSHOT_INTERVAL versions to keep that chain short. .anchor\history.bin is an IdIndex of the latest record of
+    every comment, holding its offset and its version number, as of the log size recorded in its header.
+
+ */
+class CommentHistory {
+
+    private static final int LOG_MAGIC = 0x414E4348;
+    private static final byte LOG_VERSION = 1;
+    private static final int LOG_HEADER_SIZE = 5;
+    private static final int RECORD_HEADER_SIZE = 40;
+    private static final int SNAPSHOT_INTERVAL = 16;
+    private static final byte STORE_KIND = 'h';
+
+    static final byte SNAPSHOT = 's';
+    static final byte DELTA = 'd';
+
+    static class Version {
+        byte option;
+        byte form;
+        int version;
+        long time;
+        long previousOffset;
+        String commentId;
+        int dataLength;
+        int prefixLength;
+        int suffixLength;
+        byte[] text;
+    }
+
+    private final String initDirPathString;
+    private final Path logPath;
+    private final String indexPathString;
+
+    CommentHistory(String initDirPathString){
+        this.initDirPathString = initDirPathString;
+        this.logPath = Path.of(initDirPathString + "\\history.log");
+        this.indexPathString = initDirPathString + "\\history.bin";
+    }
+
+    /*
+
+        Records a new version of every comment in the write plan whose data is not the same as its latest version,
+        given the stored data of the comments after the plan was written. Comments missing from storedData are
+        recorded as removed, unless they were already. Returns 1 on success, -1 on failure.
+
+     */
+    public int update(WritePlan plan, Map<String, String> storedData){
+
+        StoreLock storeLock = StoreLock.get(initDirPathString);
+
+        try(StoreLock.Held held = storeLock == null ? null : storeLock.lockStore()){
+
+            if(held == null){
+                return -1;
+            }
+
+            TreeMap<String, IdIndex.Entry> entries = new TreeMap<String, IdIndex.Entry>(IdIndex.ID_ORDER);
+            long logSize = load(entries);
+
+            if(logSize == -1){
+                return -1;
+            }
+
+            long time = System.currentTimeMillis();
+
+            try(FileChannel logChannel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+
+                if(logSize == 0){
+                    logChannel.truncate(0);
+                    logChannel.write(ByteBuffer.allocate(LOG_HEADER_SIZE).putInt(LOG_MAGIC).put(LOG_VERSION).flip());
+                    logSize = LOG_HEADER_SIZE;
+                }
+
+                logChannel.truncate(logSize); // drop any record left by an interrupted save
+                logChannel.position(logSize);
+
+                DataOutputStream logStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(logChannel), 64 * 1024));
+
+                for(Map.Entry<String, WritePlan.Op> planned : plan.getOps().entrySet()){
+
+                    String commentId = planned.getKey();
+                    String data = storedData.get(commentId);
+                    IdIndex.Entry latest = entries.get(commentId);
+                    List<Version> chain = latest == null ? Collections.emptyList() : readChain(logChannel, latest.offset);
+                    boolean isRemoved = chain.isEmpty() || chain.get(0).option == 'r';
+                    byte[] previous = isRemoved ? null : apply(chain);
+
+                    if(data == null && isRemoved){
+                        continue;
+                    }
+
+                    byte[] body = data == null ? new byte[0] : data.getBytes(StandardCharsets.UTF_8);
+
+                    if(data != null && previous != null && Arrays.equals(previous, body)){
+                        continue; // e.g. a comment replaced with the same data
+                    }
+
+                    Version version = new Version();
+
+                    version.option = data == null ? (byte) 'r' : planned.getValue().kind == WritePlan.Kind.APPEND ? (byte) 'a' : (byte) 'u';
+                    version.version = latest == null ? 1 : (int) latest.length + 1;
+                    version.time = time;
+                    version.previousOffset = latest == null ? -1 : latest.offset;
+                    version.commentId = commentId;
+                    version.dataLength = body.length;
+
+                    if(data == null || previous == null || chain.size() >= SNAPSHOT_INTERVAL){
+                        version.form = SNAPSHOT;
+                        version.text = body;
+                    }
+                    else{
+                        setDelta(version, previous, body);
+                    }
+
+                    entries.put(commentId, new IdIndex.Entry(commentId, logSize, version.version));
+                    logSize += writeRecord(logStream, version);
+
+                }
+
+                logStream.flush();
+
+            } catch(IOException e){
+                System.out.println("Failed writing comment history!");
+                System.out.println(e);
+                return -1;
+            }
+
+            return IdIndex.write(indexPathString, STORE_KIND, entries, logSize, 0);
+
+        }
+
+    }
+
+    // Returns the data of a version of a comment, or null if the version does not exist or removed the comment.
+    public String read(String commentId, int versionNumber){
+
+        IdIndex index = getIndex();
+        IdIndex.Entry latest = index == null ? null : index.get(commentId);
+
+        if(latest == null || versionNumber < 1 || versionNumber > latest.length){
+            return null;
+        }
+
+        try(FileChannel logChannel = FileChannel.open(logPath, StandardOpenOption.READ)){
+
+            long offset = latest.offset;
+            Version version = readVersion(logChannel, offset, false);
+
+            while(version.version > versionNumber){
+                offset = version.previousOffset;
+                version = readVersion(logChannel, offset, false);
+            }
+
+            if(version.option == 'r'){
+                return null;
+            }
+
+            return new String(apply(readChain(logChannel, offset)), StandardCharsets.UTF_8);
+
+        } catch(IOException e){
+            System.out.println("Error reading comment history!");
+            System.out.println(e);
+            return null;
+        }
+
+    }
+
+    // Returns every version of a comment, without its data, oldest first. Returns null on failure.
+    public List<Version> getVersions(String commentId){
+
+        ArrayList<Version> versions = new ArrayList<Version>();
+        IdIndex index = getIndex();
+        IdIndex.Entry latest = index == null ? null : index.get(commentId);
+
+        if(latest == null){
+            return versions;
+        }
+
+        try(FileChannel logChannel = FileChannel.open(logPath, StandardOpenOption.READ)){
+
+            long offset = latest.offset;
+
+            while(offset >= 0){
+                Version version = readVersion(logChannel, offset, false);
+                versions.add(version);
+                offset = version.previousOffset;
+            }
+
+        } catch(IOException e){
+            System.out.println("Error reading comment history!");
+            System.out.println(e);
+            return null;
+        }
+
+        Collections.reverse(versions);
+
+        return versions;
+
+    }
+
+    // Returns the history index if it is up to date with the log, otherwise null.
+    private IdIndex getIndex(){
+
+        IdIndex index = IdIndex.open(indexPathString, STORE_KIND);
+
+        try{
+            if(index != null && Files.exists(logPath) && index.getStoreSize() <= Files.size(logPath)){
+                return index;
+            }
+        } catch(IOException ignored){
+        }
+
+        return null;
+
+    }
+
+    /*
+
+        Loads the latest record of every comment into entries, and returns the size of the log they were loaded from,
+        0 if there is no log, or -1 on failure. The entries come from the index, or from a scan of the log if the index
+        is missing or was not written, in which case the log ends at its last whole record.
+
+     */
+    private long load(TreeMap<String, IdIndex.Entry> entries){
+
+        if(!Files.exists(logPath)){
+            return 0;
+        }
+
+        IdIndex index = getIndex();
+
+        if(index != null){
+            entries.putAll(index.getAll());
+            return index.getStoreSize();
+        }
+
+        try(FileChannel logChannel = FileChannel.open(logPath, StandardOpenOption.READ)){
+
+            long size = logChannel.size();
+
+            if(size < LOG_HEADER_SIZE){
+                return 0;
+            }
+
+            ByteBuffer header = readFully(logChannel, 0, LOG_HEADER_SIZE);
+
+            if(header.getInt() != LOG_MAGIC || header.get() != LOG_VERSION){
+                System.out.println("Comment history has an unsupported format!");
+                return -1;
+            }
+
+            long offset = LOG_HEADER_SIZE;
+
+            while(offset + RECORD_HEADER_SIZE <= size){
+
+                Version version;
+
+                try{
+                    version = readVersion(logChannel, offset, true);
+                } catch(EOFException e){
+                    break; // partially written record
+                }
+
+                entries.put(version.commentId, new IdIndex.Entry(version.commentId, offset, version.version));
+                offset += RECORD_HEADER_SIZE + version.commentId.getBytes(StandardCharsets.UTF_8).length + version.text.length;
+            }
+
+            return offset;
+
+        } catch(IOException e){
+            System.out.println("Error reading comment history!");
+            System.out.println(e);
+            return -1;
+        }
+
+    }
+
+    // Returns the records a version is built from, from the version back to the snapshot it is a delta of.
+    private static List<Version> readChain(FileChannel logChannel, long offset) throws IOException {
+
+        ArrayList<Version> chain = new ArrayList<Version>();
+
+        while(true){
+
+            Version version = readVersion(logChannel, offset, true);
+
+            chain.add(version);
+
+            if(version.form == SNAPSHOT){
+                return chain;
+            }
+
+            offset = version.previousOffset;
+        }
+
+    }
+
+    // Rebuilds the data of the first version of a chain, by applying its deltas to its snapshot.
+    private static byte[] apply(List<Version> chain){
+
+        byte[] data = chain.get(chain.size() - 1).text;
+
+        for(int i = chain.size() - 2; i >= 0; i--){
+
+            Version delta = chain.get(i);
+            byte[] next = new byte[delta.dataLength];
+
+            System.arraycopy(data, 0, next, 0, delta.prefixLength);
+            System.arraycopy(delta.text, 0, next, delta.prefixLength, delta.text.length);
+            System.arraycopy(data, data.length - delta.suffixLength, next, delta.prefixLength + delta.text.length, delta.suffixLength);
+
+            data = next;
+        }
+
+        return data;
+
+    }
+
+    // Makes the version a delta of the previous data, keeping the longest common prefix and suffix of the two.
+    private static void setDelta(Version version, byte[] previous, byte[] body){
+
+        int maxLength = Math.min(previous.length, body.length);
+        int prefixLength = 0;
+        int suffixLength = 0;
+
+        while(prefixLength < maxLength && previous[prefixLength] == body[prefixLength]){
+            prefixLength++;
+        }
+
+        while(suffixLength < maxLength - prefixLength && previous[previous.length - 1 - suffixLength] == body[body.length - 1 - suffixLength]){
+            suffixLength++;
+        }
+
+        version.form = DELTA;
+        version.prefixLength = prefixLength;
+        version.suffixLength = suffixLength;
+        version.text = Arrays.copyOfRange(body, prefixLength, body.length - suffixLength);
+
+    }
+
+    // Writes a record, and returns its size.
+    private static long writeRecord(DataOutputStream logStream, Version version) throws IOException {
+
+        byte[] idBytes = version.commentId.getBytes(StandardCharsets.UTF_8);
+
+        logStream.writeByte(version.option);
+        logStream.writeByte(version.form);
+        logStream.writeInt(version.version);
+        logStream.writeLong(version.time);
+        logStream.writeLong(version.previousOffset);
+        logStream.writeShort(idBytes.length);
+        logStream.write(idBytes);
+        logStream.writeInt(version.dataLength);
+        logStream.writeInt(version.prefixLength);
+        logStream.writeInt(version.suffixLength);
+        logStream.writeInt(version.text.length);
+        logStream.write(version.text);
+
+        return RECORD_HEADER_SIZE + idBytes.length + version.text.length;
+
+    }
+
+    // Reads the record at offset, along with its text if isTextRead is set.
+    private static Version readVersion(FileChannel logChannel, long offset, boolean isTextRead) throws IOException {
+
+        Version version = new Version();
+        ByteBuffer header = readFully(logChannel, offset, 24);
+
+        version.option = header.get();
+        version.form = header.get();
+        version.version = header.getInt();
+        version.time = header.getLong();
+        version.previousOffset = header.getLong();
+
+        int idLength = Short.toUnsignedInt(header.getShort());
+        ByteBuffer idAndLengths = readFully(logChannel, offset + 24, idLength + 16);
+        byte[] idBytes = new byte[idLength];
+
+        idAndLengths.get(idBytes);
+        version.commentId = new String(idBytes, StandardCharsets.UTF_8);
+        version.dataLength = idAndLengths.getInt();
+        version.prefixLength = idAndLengths.getInt();
+        version.suffixLength = idAndLengths.getInt();
+
+        int textLength = idAndLengths.getInt();
+
+        version.text = isTextRead ? readFully(logChannel, offset + RECORD_HEADER_SIZE + idLength, textLength).array() : new byte[0];
+
+        return version;
+
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer, position + buffer.position()) == -1){
+                throw new EOFException("Unexpected end of comment history");
+            }
+        }
+
+        return buffer.flip();
+
+    }
+
+}
@@ -0,0 +1,144 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Predicate;
+
+/*
+
+    Storage engine for anchor comment data. The engine is selected with the "storage" key in config.txt:
+        storage=files     each anchor is stored in its own data\[Anchor.Comment.ID].txt file (default)
+        storage=packed    all anchors are stored in a single append-only log, see PackedCommentStore
+        storage=dedup     identical comment data is stored once, in content addressed blobs, see DedupCommentStore
+
+    Every engine can store comment data deflated, with "compression=deflate", see CommentCodec. The packed and dedup
+    engines gain the most from it, since the files engine keeps each comment in a file of its own, which takes up a
+    whole file system block however small it is compressed.
+
+    Comment ids are passed in their full form, e.g. "[Anchor.Comment.ID]". The files and packed engines keep an
+    IdIndex of the stored ids in .anchor\index.bin, which is brought up to date by every write. The dedup engine
+    keeps its references to blobs in an IdIndex of its own.
+
+ */
+interface CommentStore {
+
+    // A stored comment, as listed by "anchor list".
+    class Listing {
+        final String commentId;
+        final long size; // bytes of comment data held by the store, compressed if the store compresses it
+        final List<String> options; // options of the records making up the current data, oldest first, if the store keeps them
+
+        Listing(String commentId, long size, List<String> options){
+            this.commentId = commentId;
+            this.size = size;
+            this.options = options;
+        }
+    }
+
+    // Carries out the write plan of a save, with a single storage operation per comment. Returns 1 on success, -1 on failure.
+    int write(WritePlan plan);
+
+    // Returns the stored data of a comment, or null if no data is stored for it.
+    String read(String commentId);
+
+    // Returns the stored data of each of the given comments which has any, by comment id, or null if the store could
+    // not be read. Engines which can read many comments more cheaply than one at a time override this.
+    default HashMap<String, String> read(Collection<String> commentIds){
+
+        HashMap<String, String> result = new HashMap<String, String>();
+
+        for(String commentId : commentIds){
+
+            String data = read(commentId);
+
+            if(data != null){
+                result.put(commentId, data);
+            }
+
+        }
+
+        return result;
+
+    }
+
+    // Writes the stored data of a comment to the channel, UTF-8 encoded, at its position. Returns the number of bytes
+    // written, or -1 if no data is stored for the comment. Engines which keep the data of a comment as it is written
+    // override this to copy it with FileChannel.transferTo, without reading it into memory.
+    default long transferTo(String commentId, FileChannel target) throws IOException {
+
+        String data = read(commentId);
+
+        if(data == null){
+            return -1;
+        }
+
+        ByteBuffer encoded = StandardCharsets.UTF_8.encode(data);
+        long length = encoded.remaining();
+
+        while(encoded.hasRemaining()){
+            target.write(encoded);
+        }
+
+        return length;
+
+    }
+
+    // Copies count bytes of the source, from position, to the target. Returns count.
+    static long transferFully(FileChannel source, long position, long count, FileChannel target) throws IOException {
+
+        long transferred = 0;
+
+        while(transferred < count){
+
+            long chunk = source.transferTo(position + transferred, count - transferred, target);
+
+            if(chunk <= 0 && position + transferred >= source.size()){
+                throw new EOFException("Unexpected end of stored comment data");
+            }
+
+            transferred += chunk;
+        }
+
+        return count;
+
+    }
+
+    // Returns the ids of all stored comments which start with prefix, sorted by IdIndex.ID_ORDER.
+    List<String> getCommentIds(String prefix);
+
+    // Passes the stored comments with ids after afterId, or every stored comment if it is null, to visitor in
+    // IdIndex.ID_ORDER, until it returns false. Comments are read from the index one at a time, so listing never holds
+    // every comment in memory. Returns 1 on success, -1 on failure.
+    int list(String afterId, Predicate<Listing> visitor);
+
+    static CommentStore open(String initDirPathString, HashMap<String, String> configData){
+
+        String storage = configData == null ? null : configData.get("storage");
+        String compression = configData == null ? null : configData.get("compression");
+        boolean isCompressed = compression != null && compression.trim().equals("deflate");
+
+        if(compression != null && !compression.trim().isEmpty() && !compression.trim().equals("none") && !isCompressed){
+            System.out.println("Unknown compression in config file : " + compression);
+            return null;
+        }
+
+        boolean isDictionaryEnabled = configData != null && "true".equals(configData.getOrDefault("dictionary", "").trim());
+        CommentCodec codec = new CommentCodec(initDirPathString, isDictionaryEnabled);
+
+        if(storage == null || storage.trim().isEmpty() || storage.trim().equals("files")){
+            return new FileCommentStore(initDirPathString, codec, isCompressed);
+        }
+        else if(storage.trim().equals("packed")){
+            return new PackedCommentStore(initDirPathString, codec, isCompressed);
+        }
+        else if(storage.trim().equals("dedup")){
+            return new DedupCommentStore(initDirPathString, codec, isCompressed);
+        }
+
+        System.out.println("Unknown storage engine in config file : " + storage);
+        return null;
+
+    }
+
+}
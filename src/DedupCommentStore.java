@@ -0,0 +1,364 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+
+/*
+
+    Content addressed storage engine, selected with "storage=dedup". Comment data is stored once per distinct body,
+    in a blob named after its content:
+        .anchor\blobs\{first 8 bytes of the SHA-256 of the body, in hex}-{body length, in hex}
+    or, with "compression=deflate", in a blob of deflated data written by a CommentCodec:
+        .anchor\blobs\{first 8 bytes of the SHA-256 of the body, in hex}-{body length, in hex}.z
+
+    and every comment id refers to the blob holding its current data. The references are kept in .anchor\refs.bin, an
+    IdIndex whose entries hold the hash of the blob in their offset and the body length in their length, so reading a
+    comment is a single lookup followed by a single blob read. A blob is only shared once its content has been compared
+    with the body, and a body whose name is taken by a different body of the same length is stored under the next free
+    hash, which its references then hold, so colliding hashes never return another comment's data. The length of a
+    reference to a deflated blob has the COMPRESSED bit set, so references to both forms can be mixed.
+
+    The number of references to every blob is counted from refs.bin when a save starts. Updating, appending to or
+    removing a comment releases its previous blob, and blobs left without references are deleted once the new
+    references have been written, so an interrupted save can leave unreferenced blobs but never missing ones.
+
+ */
+class DedupCommentStore implements CommentStore {
+
+    private static final byte STORE_KIND = 'd';
+    private static final long COMPRESSED = 1L << 62;
+
+    private final String initDirPathString;
+    private final String blobDirPathString;
+    private final String refsPathString;
+    private final CommentCodec codec;
+    private final boolean isCompressed;
+    private IdIndex refs;
+
+    DedupCommentStore(String initDirPathString, CommentCodec codec, boolean isCompressed){
+        this.initDirPathString = initDirPathString;
+        this.blobDirPathString = initDirPathString + "\\blobs";
+        this.refsPathString = initDirPathString + "\\refs.bin";
+        this.codec = codec;
+        this.isCompressed = isCompressed;
+    }
+
+    // Writes the plan with the store locked, since reference counts are taken over every comment id.
+    public int write(WritePlan plan){
+
+        StoreLock storeLock = StoreLock.get(initDirPathString);
+
+        try(StoreLock.Held store = storeLock == null ? null : storeLock.lockStore()){
+
+            if(store == null || isCompressed && codec.isDictionaryNeeded() && codec.trainDictionary(plan, this) == -1){
+                return -1;
+            }
+
+            return writeRefs(plan);
+
+        }
+
+    }
+
+    private int writeRefs(WritePlan plan){
+
+        IdIndex currentRefs = IdIndex.open(refsPathString, STORE_KIND);
+        TreeMap<String, IdIndex.Entry> entries = currentRefs == null ? new TreeMap<String, IdIndex.Entry>(IdIndex.ID_ORDER) : currentRefs.getAll();
+        HashMap<String, Integer> refCounts = new HashMap<String, Integer>();
+        long bytesWritten = 0;
+
+        for(IdIndex.Entry entry : entries.values()){
+            refCounts.merge(getBlobName(entry), 1, Integer::sum);
+        }
+
+        HashSet<String> releasedBlobs = new HashSet<String>();
+
+        try{
+
+            Files.createDirectories(Path.of(blobDirPathString));
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+            for(Map.Entry<String, WritePlan.Op> planned : plan.getOps().entrySet()){
+
+                String commentId = planned.getKey();
+                WritePlan.Op op = planned.getValue();
+                IdIndex.Entry previous = entries.get(commentId);
+
+                if(op.kind == WritePlan.Kind.DELETE){
+                    release(entries.remove(commentId), refCounts, releasedBlobs);
+                    continue;
+                }
+
+                String data = op.kind == WritePlan.Kind.APPEND && previous != null ? readBlob(getBlobName(previous)) + op.data : op.data;
+                byte[] body = data.getBytes(StandardCharsets.UTF_8);
+                long hash = ByteBuffer.wrap(digest.digest(body)).getLong();
+                long length = isCompressed ? body.length | COMPRESSED : body.length;
+
+                release(previous, refCounts, releasedBlobs);
+
+                // a referenced blob of another body with the same name moves this body on to the next hash
+                while(refCounts.getOrDefault(getBlobName(hash, length), 0) > 0 && !isBlobEqual(getBlobName(hash, length), body)){
+                    hash++;
+                }
+
+                IdIndex.Entry entry = new IdIndex.Entry(commentId, hash, length);
+                String blobName = getBlobName(entry);
+
+                entries.put(commentId, entry);
+
+                if(refCounts.merge(blobName, 1, Integer::sum) == 1){
+                    bytesWritten += writeBlob(blobName, data, body);
+                }
+
+            }
+
+        } catch(IOException | NoSuchAlgorithmException e){
+            System.out.println("Failed writing comment data to blob store!");
+            System.out.println(e);
+            return -1;
+        }
+
+        refs = null;
+
+        if(IdIndex.write(refsPathString, STORE_KIND, entries, 0, 0) == -1){
+            return -1;
+        }
+
+        for(String blobName : releasedBlobs){
+            if(refCounts.getOrDefault(blobName, 0) == 0){
+                deleteBlob(blobName);
+            }
+        }
+
+        printSavings(entries, refCounts, bytesWritten);
+
+        return 1;
+
+    }
+
+    public String read(String commentId){
+
+        IdIndex currentRefs = getRefs();
+        IdIndex.Entry entry = currentRefs == null ? null : currentRefs.get(commentId);
+
+        if(entry == null){
+            return null;
+        }
+
+        try{
+            return readBlob(getBlobName(entry));
+        } catch(NoSuchFileException e){
+            System.out.println("Missing blob for : " + commentId);
+            return null;
+        } catch(IOException e){
+            System.out.println("Error reading from blob store!");
+            System.out.println(e);
+            return null;
+        }
+
+    }
+
+    // Copies the blob of the comment as it is, unless it is deflated, in which case it is read by the default.
+    public long transferTo(String commentId, FileChannel target) throws IOException {
+
+        IdIndex currentRefs = getRefs();
+        IdIndex.Entry entry = currentRefs == null ? null : currentRefs.get(commentId);
+
+        if(entry == null){
+            return -1;
+        }
+
+        if((entry.length & COMPRESSED) != 0){
+            return CommentStore.super.transferTo(commentId, target);
+        }
+
+        try(FileChannel blobChannel = FileChannel.open(Path.of(blobDirPathString + "\\" + getBlobName(entry)), StandardOpenOption.READ)){
+            return CommentStore.transferFully(blobChannel, 0, blobChannel.size(), target);
+        } catch(NoSuchFileException e){
+            System.out.println("Missing blob for : " + commentId);
+            return -1;
+        }
+
+    }
+
+    public List<String> getCommentIds(String prefix){
+
+        ArrayList<String> result = new ArrayList<String>();
+        IdIndex currentRefs = getRefs();
+
+        if(currentRefs == null){
+            return result;
+        }
+
+        for(IdIndex.Entry entry : currentRefs.getByPrefix(prefix)){
+            result.add(entry.commentId);
+        }
+
+        return result;
+
+    }
+
+    public int list(String afterId, Predicate<Listing> visitor){
+
+        IdIndex currentRefs = getRefs();
+        Iterator<IdIndex.Entry> entries = currentRefs == null ? Collections.emptyIterator() : currentRefs.iterateAfter(afterId);
+
+        while(entries.hasNext()){
+
+            IdIndex.Entry entry = entries.next();
+
+            if(!visitor.test(new Listing(entry.commentId, getStoredSize(entry), Collections.emptyList()))){
+                break;
+            }
+
+        }
+
+        return 1;
+
+    }
+
+    private IdIndex getRefs(){
+
+        if(refs == null){
+            refs = IdIndex.open(refsPathString, STORE_KIND);
+        }
+
+        return refs;
+
+    }
+
+    private static String getBlobName(IdIndex.Entry entry){
+        return getBlobName(entry.offset, entry.length);
+    }
+
+    private static String getBlobName(long hash, long length){
+        return String.format("%016x-%x", hash, length & ~COMPRESSED) + ((length & COMPRESSED) != 0 ? ".z" : "");
+    }
+
+    // Returns the bytes a comment's blob takes up, which is only looked up for deflated blobs.
+    private long getStoredSize(IdIndex.Entry entry){
+
+        if((entry.length & COMPRESSED) == 0){
+            return entry.length;
+        }
+
+        try{
+            return Files.size(Path.of(blobDirPathString + "\\" + getBlobName(entry)));
+        } catch(IOException e){
+            return entry.length & ~COMPRESSED;
+        }
+
+    }
+
+    private static void release(IdIndex.Entry entry, HashMap<String, Integer> refCounts, Set<String> releasedBlobs){
+
+        if(entry == null){
+            return;
+        }
+
+        String blobName = getBlobName(entry);
+
+        refCounts.merge(blobName, -1, Integer::sum);
+        releasedBlobs.add(blobName);
+
+    }
+
+    // Reads a blob into a heap buffer. Blobs are small, and a mapped blob could not be replaced or deleted on Windows
+    // later in the same process, e.g. by a daemon, until its mapping happened to be garbage collected.
+    private String readBlob(String blobName) throws IOException {
+
+        try(FileChannel blobChannel = FileChannel.open(Path.of(blobDirPathString + "\\" + blobName), StandardOpenOption.READ)){
+
+            ByteBuffer blob = ByteBuffer.allocate((int) blobChannel.size());
+
+            while(blob.hasRemaining() && blobChannel.read(blob) != -1);
+            blob.flip();
+
+            return blobName.endsWith(".z") ? codec.decompress(blob) : StandardCharsets.UTF_8.decode(blob).toString();
+
+        } catch(DataFormatException e){
+            throw new IOException("Corrupt deflated blob : " + blobName, e);
+        }
+
+    }
+
+    // Returns true if the blob exists and holds exactly the body, once inflated if it is deflated.
+    private boolean isBlobEqual(String blobName, byte[] body) throws IOException {
+
+        Path blobPath = Path.of(blobDirPathString + "\\" + blobName);
+
+        if(!Files.exists(blobPath)){
+            return false;
+        }
+
+        if(blobName.endsWith(".z")){
+            return Arrays.equals(readBlob(blobName).getBytes(StandardCharsets.UTF_8), body);
+        }
+
+        return Files.size(blobPath) == body.length && Arrays.equals(Files.readAllBytes(blobPath), body);
+
+    }
+
+    // Writes a blob, deflated if its name says so, unless it already holds the body, e.g. left behind by an interrupted
+    // save. An unreferenced blob holding another body is replaced. Returns the number of bytes written.
+    private long writeBlob(String blobName, String data, byte[] body) throws IOException {
+
+        Path blobPath = Path.of(blobDirPathString + "\\" + blobName);
+
+        if(isBlobEqual(blobName, body)){
+            return 0;
+        }
+
+        Path tempPath = Path.of(blobDirPathString + "\\" + blobName + ".tmp");
+        byte[] blob = blobName.endsWith(".z") ? codec.compress(data) : body;
+
+        Files.write(tempPath, blob);
+        Files.move(tempPath, blobPath, StandardCopyOption.REPLACE_EXISTING);
+
+        return blob.length;
+
+    }
+
+    private void deleteBlob(String blobName){
+        try{
+            Files.deleteIfExists(Path.of(blobDirPathString + "\\" + blobName));
+        } catch(IOException e){
+            System.out.println("Failed deleting unreferenced blob : " + blobName);
+        }
+    }
+
+    private static void printSavings(TreeMap<String, IdIndex.Entry> entries, HashMap<String, Integer> refCounts, long bytesWritten){
+
+        long commentBytes = 0;
+        long blobBytes = 0;
+        int blobCount = 0;
+
+        for(IdIndex.Entry entry : entries.values()){
+            commentBytes += entry.length & ~COMPRESSED;
+        }
+
+        for(Map.Entry<String, Integer> refCount : refCounts.entrySet()){
+            if(refCount.getValue() > 0){
+                String blobName = refCount.getKey();
+                blobBytes += Long.parseLong(blobName.substring(blobName.indexOf('-') + 1, blobName.endsWith(".z") ? blobName.length() - 2 : blobName.length()), 16);
+                blobCount++;
+            }
+        }
+
+        System.out.println("Stored " + entries.size() + " comment(s) in " + blobCount + " blob(s), " + blobBytes + " of " + commentBytes + " bytes ("
+                + (commentBytes - blobBytes) + " saved by deduplication). Wrote " + bytesWritten + " bytes of new blobs.");
+
+    }
+
+}
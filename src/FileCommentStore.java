@@ -0,0 +1,354 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+
+/*
+
+    The original storage engine, which stores the comment data of each anchor in its own file:
+        .anchor\data\[Anchor.Comment.ID].txt
+
+    The id index records the size of each data file, so reads of comments which are not stored, and prefix queries,
+    never touch the data directory.
+
+    With compression enabled, comment data is deflated by a CommentCodec and stored in [Anchor.Comment.ID].z files
+    instead. The offset of an index entry records which of the two forms a comment is stored in, 0 for text and
+    COMPRESSED for deflated, and data stored in the other form is converted when it is next appended to.
+
+ */
+class FileCommentStore implements CommentStore {
+
+    private static final byte STORE_KIND = 'f';
+    private static final long COMPRESSED = 1;
+
+    private final String initDirPathString;
+    private final String dataDirPathString;
+    private final String indexPathString;
+    private final CommentCodec codec;
+    private final boolean isCompressed;
+    private IdIndex index;
+
+    FileCommentStore(String initDirPathString, CommentCodec codec, boolean isCompressed){
+        this.initDirPathString = initDirPathString;
+        this.dataDirPathString = initDirPathString + "\\data";
+        this.indexPathString = initDirPathString + "\\index.bin";
+        this.codec = codec;
+        this.isCompressed = isCompressed;
+    }
+
+    public int write(WritePlan plan){
+
+        StoreLock storeLock = StoreLock.get(initDirPathString);
+
+        if(storeLock == null){
+            return -1;
+        }
+
+        try(StoreLock.Held stripes = storeLock.lockStripes(plan.getCommentIds())){
+
+            if(stripes == null || isCompressed && codec.isDictionaryNeeded() && codec.trainDictionary(plan, this) == -1){
+                return -1;
+            }
+
+            // with the stripes of the planned ids locked, their entries can only be changed by this save
+            TreeMap<String, IdIndex.Entry> entries = getEntries();
+
+            if(entries == null){
+                return -1;
+            }
+
+            int status = writeDataToFile(plan, entries);
+
+            // data files written before a failure still need to be indexed
+            if(updateIndex(storeLock, plan.getCommentIds(), entries) == -1){
+                return -1;
+            }
+
+            return status;
+
+        }
+
+    }
+
+    // Merges the entries of the given comment ids into the index, which other saves may have rewritten meanwhile.
+    private int updateIndex(StoreLock storeLock, Set<String> commentIds, TreeMap<String, IdIndex.Entry> entries){
+
+        if(storeLock == null){
+            return -1;
+        }
+
+        try(StoreLock.Held store = storeLock.lockStore()){
+
+            TreeMap<String, IdIndex.Entry> currentEntries = store == null ? null : getEntries();
+
+            if(currentEntries == null){
+                return -1;
+            }
+
+            for(String commentId : commentIds){
+
+                IdIndex.Entry entry = entries.get(commentId);
+
+                if(entry == null){
+                    currentEntries.remove(commentId);
+                }
+                else{
+                    currentEntries.put(commentId, entry);
+                }
+
+            }
+
+            index = null;
+            return IdIndex.write(indexPathString, STORE_KIND, currentEntries, 0, 0);
+
+        }
+
+    }
+
+    // Returns the entries of the index, or of the data directory if there is no index yet, or null on failure.
+    private TreeMap<String, IdIndex.Entry> getEntries(){
+
+        IdIndex currentIndex = IdIndex.open(indexPathString, STORE_KIND);
+
+        try{
+            return currentIndex == null ? listDataFiles() : currentIndex.getAll();
+        } catch(IOException e){
+            System.out.println("Failed reading data directory!");
+            System.out.println(e);
+            return null;
+        }
+
+    }
+
+    /*
+
+        Write comment data to file, with a single write, truncate or delete of one data file per planned operation.
+        entries holds the index entries of the stored comments, which tell the form and size of every data file
+        without touching the data directory, and is brought up to date with the files written.
+
+     */
+    private int writeDataToFile(WritePlan plan, TreeMap<String, IdIndex.Entry> entries){
+
+        if(!Files.exists(Path.of(dataDirPathString))){
+            try{
+                Files.createDirectory(Path.of(dataDirPathString));
+            } catch(Exception e){
+                System.out.println("Failed to create data directory!");
+                System.out.println(e);
+                return -1;
+            }
+        }
+
+        for(Map.Entry<String, WritePlan.Op> planned : plan.getOps().entrySet()){
+
+            String commentId = planned.getKey();
+            WritePlan.Op op = planned.getValue();
+            IdIndex.Entry stored = entries.get(commentId);
+
+            try{
+
+                if(op.kind == WritePlan.Kind.DELETE){
+                    if(stored != null){
+                        Files.deleteIfExists(getDataPath(stored));
+                        entries.remove(commentId);
+                    }
+                    continue;
+                }
+
+                boolean isStoredInOtherForm = stored != null && (stored.offset == COMPRESSED) != isCompressed;
+
+                if(isStoredInOtherForm && op.kind == WritePlan.Kind.APPEND){
+                    stored = convertDataFile(stored); // existing data is appended to in the configured form
+                }
+                else if(isStoredInOtherForm){
+                    Files.delete(getDataPath(stored));
+                    stored = null;
+                }
+
+                boolean isAppend = op.kind == WritePlan.Kind.APPEND && stored != null;
+                byte[] data = isCompressed ? codec.compress(op.data) : op.data.getBytes(Charset.defaultCharset());
+                Path commentPath = isCompressed ? getCompressedPath(commentId) : getTextPath(commentId);
+
+                if(isAppend){
+                    Files.write(commentPath, data, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+                else{
+                    Files.write(commentPath, data);
+                }
+
+                entries.put(commentId, new IdIndex.Entry(commentId, isCompressed ? COMPRESSED : 0, (isAppend ? stored.length : 0) + data.length));
+
+            } catch(Exception e){
+                System.out.println("Failed writing comment data to file!");
+                System.out.println(e);
+                return -1;
+            }
+
+        }
+
+        return 1;
+
+    }
+
+    public String read(String commentId){
+
+        IdIndex index = getIndex();
+        IdIndex.Entry entry = index == null ? null : index.get(commentId);
+
+        if(index != null && entry == null){
+            return null;
+        }
+
+        boolean isEntryCompressed = entry == null ? Files.exists(getCompressedPath(commentId)) : entry.offset == COMPRESSED;
+        Path commentPath = isEntryCompressed ? getCompressedPath(commentId) : getTextPath(commentId);
+
+        try(FileChannel commentChannel = FileChannel.open(commentPath, StandardOpenOption.READ)){
+            // read rather than mapped, since Windows keeps a mapped data file from being rewritten or deleted by a later save
+            ByteBuffer commentData = ByteBuffer.allocate((int) commentChannel.size());
+            while(commentData.hasRemaining() && commentChannel.read(commentData) != -1);
+            commentData.flip();
+            return isEntryCompressed ? codec.decompress(commentData) : Charset.defaultCharset().decode(commentData).toString();
+        } catch(NoSuchFileException e){
+            return null;
+        } catch(Exception e){
+            System.out.println("Error reading from comment data file!");
+            System.out.println(e);
+            return null;
+        }
+
+    }
+
+    // Copies text data files as they are, when they hold UTF-8. Compressed data is decompressed by the default.
+    public long transferTo(String commentId, FileChannel target) throws IOException {
+
+        IdIndex index = getIndex();
+        IdIndex.Entry entry = index == null ? null : index.get(commentId);
+
+        if(entry == null || entry.offset == COMPRESSED || !Charset.defaultCharset().equals(StandardCharsets.UTF_8)){
+            return CommentStore.super.transferTo(commentId, target);
+        }
+
+        try(FileChannel commentChannel = FileChannel.open(getTextPath(commentId), StandardOpenOption.READ)){
+            return CommentStore.transferFully(commentChannel, 0, commentChannel.size(), target);
+        } catch(NoSuchFileException e){
+            return -1;
+        }
+
+    }
+
+    public List<String> getCommentIds(String prefix){
+
+        ArrayList<String> result = new ArrayList<String>();
+        IdIndex index = getIndex();
+
+        if(index == null){
+            return result;
+        }
+
+        for(IdIndex.Entry entry : index.getByPrefix(prefix)){
+            result.add(entry.commentId);
+        }
+
+        return result;
+
+    }
+
+    public int list(String afterId, Predicate<Listing> visitor){
+
+        IdIndex index = getIndex();
+        Iterator<IdIndex.Entry> entries = index == null ? Collections.emptyIterator() : index.iterateAfter(afterId);
+
+        while(entries.hasNext()){
+
+            IdIndex.Entry entry = entries.next();
+
+            if(!visitor.test(new Listing(entry.commentId, entry.length, Collections.emptyList()))){
+                break;
+            }
+
+        }
+
+        return 1;
+
+    }
+
+    // Opens the id index, building it from the data directory if the store was written before indexes existed.
+    private IdIndex getIndex(){
+
+        if(index != null){
+            return index;
+        }
+
+        index = IdIndex.open(indexPathString, STORE_KIND);
+
+        if(index == null && Files.exists(Path.of(dataDirPathString)) && updateIndex(StoreLock.get(initDirPathString), Collections.emptySet(), null) == 1){
+            index = IdIndex.open(indexPathString, STORE_KIND);
+        }
+
+        return index;
+
+    }
+
+    private TreeMap<String, IdIndex.Entry> listDataFiles() throws IOException {
+
+        TreeMap<String, IdIndex.Entry> entries = new TreeMap<String, IdIndex.Entry>(IdIndex.ID_ORDER);
+
+        if(!Files.exists(Path.of(dataDirPathString))){
+            return entries;
+        }
+
+        try(DirectoryStream<Path> dataFiles = Files.newDirectoryStream(Path.of(dataDirPathString), "*.{txt,z}")){
+            for(Path dataFile : dataFiles){
+                String fileName = dataFile.getFileName().toString();
+                boolean isFileCompressed = fileName.endsWith(".z");
+                String commentId = fileName.substring(0, fileName.length() - (isFileCompressed ? 2 : 4));
+                entries.put(commentId, new IdIndex.Entry(commentId, isFileCompressed ? COMPRESSED : 0, Files.size(dataFile)));
+            }
+        }
+
+        return entries;
+
+    }
+
+    private Path getTextPath(String commentId){
+        return Path.of(dataDirPathString + "\\" + commentId + ".txt");
+    }
+
+    private Path getCompressedPath(String commentId){
+        return Path.of(dataDirPathString + "\\" + commentId + ".z");
+    }
+
+    private Path getDataPath(IdIndex.Entry entry){
+        return entry.offset == COMPRESSED ? getCompressedPath(entry.commentId) : getTextPath(entry.commentId);
+    }
+
+    // Rewrites the data of a comment which is stored in the other form than the one configured. Returns its new entry.
+    private IdIndex.Entry convertDataFile(IdIndex.Entry stored) throws IOException, DataFormatException {
+
+        byte[] data;
+
+        if(isCompressed){
+            data = codec.compress(Files.readString(getTextPath(stored.commentId), Charset.defaultCharset()));
+            Files.write(getCompressedPath(stored.commentId), data);
+        }
+        else{
+            data = codec.decompress(ByteBuffer.wrap(Files.readAllBytes(getCompressedPath(stored.commentId)))).getBytes(Charset.defaultCharset());
+            Files.write(getTextPath(stored.commentId), data);
+        }
+
+        Files.delete(getDataPath(stored));
+
+        return new IdIndex.Entry(stored.commentId, isCompressed ? COMPRESSED : 0, data.length);
+
+    }
+
+}
@@ -0,0 +1,332 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/*
+
+    Records the size, modification time and content hash of every target file as of the last save, so that save
+    only needs to process files which changed since then. The id and location of every anchor marker left in each
+    file are recorded too, which lets restore find the files containing anchors, and locate find a marker, without
+    scanning the whole tree. Locations are only updated for files which are saved, as the files themselves are.
+
+    The manifest is stored in .anchor\manifest.txt, starting with a header line and followed by one line per file,
+    each followed by one tab indented line per anchor marker in the file:
+        {size}	{modified time}	{content hash}	{absolute file path}
+        	{anchor id}	{line}	{byte offset}
+
+ */
+class FileManifest {
+
+    private static final String MANIFEST_HEADER = "anchor manifest 3";
+
+    // An anchor marker in a file as it was saved. Line numbers start at 1, and offset is the byte offset of the start
+    // of the marker's line.
+    static class AnchorLocation {
+        final String anchorId;
+        final int line;
+        final long offset;
+
+        AnchorLocation(String anchorId, int line, long offset){
+            this.anchorId = anchorId;
+            this.line = line;
+            this.offset = offset;
+        }
+    }
+
+    private static class Entry {
+        final long size;
+        final long modifiedTime;
+        final long hash;
+        final List<AnchorLocation> anchors;
+
+        Entry(long size, long modifiedTime, long hash, List<AnchorLocation> anchors){
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.hash = hash;
+            this.anchors = anchors;
+        }
+    }
+
+    private final String initDirPathString;
+    private final String manifestPathString;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final Set<String> recordedPaths = ConcurrentHashMap.newKeySet(); // files recorded since the last save
+
+    private FileManifest(String initDirPathString){
+        this.initDirPathString = initDirPathString;
+        this.manifestPathString = initDirPathString + "\\manifest.txt";
+    }
+
+    // Loads the manifest from the init directory. A missing or unreadable manifest results in an empty one.
+    public static FileManifest load(String initDirPathString){
+
+        FileManifest manifest = new FileManifest(initDirPathString);
+
+        if(!Files.exists(Path.of(manifest.manifestPathString))){
+            return manifest;
+        }
+
+        try(BufferedReader manifestReader = new BufferedReader(new FileReader(manifest.manifestPathString))){
+
+            // manifests written before anchor locations were recorded are discarded, so every file is saved once more
+            String line = MANIFEST_HEADER.equals(manifestReader.readLine()) ? manifestReader.readLine() : null;
+            List<AnchorLocation> anchors = null;
+
+            while(line != null){
+
+                if(line.startsWith("\t")){
+                    if(anchors != null){
+                        // parsed from the end, since the line and offset never contain tabs but ids might
+                        int offsetIndex = line.lastIndexOf('\t');
+                        int lineIndex = line.lastIndexOf('\t', offsetIndex - 1);
+                        anchors.add(new AnchorLocation(line.substring(1, lineIndex), Integer.parseInt(line.substring(lineIndex + 1, offsetIndex)), Long.parseLong(line.substring(offsetIndex + 1))));
+                    }
+                    line = manifestReader.readLine();
+                    continue;
+                }
+
+                String[] fields = line.split("\t", 4);
+                anchors = null;
+
+                if(fields.length == 4){
+                    anchors = new ArrayList<AnchorLocation>();
+                    manifest.entries.put(fields[3], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2], 16), anchors));
+                }
+
+                line = manifestReader.readLine();
+            }
+
+        } catch(Exception e){
+            System.out.println("Error reading file manifest! All files will be saved.");
+            manifest.entries.clear();
+        }
+
+        return manifest;
+
+    }
+
+    /*
+
+        Returns true if the file has the same content as when it was last recorded. Size and modification time are
+        checked first, and the content is only hashed when the size matches but the file has been touched.
+
+     */
+    public boolean isUnchanged(String filePath){
+
+        Entry entry = entries.get(filePath);
+
+        if(entry == null){
+            return false;
+        }
+
+        try{
+            BasicFileAttributes attributes = Files.readAttributes(Paths.get(filePath), BasicFileAttributes.class);
+            long modifiedTime = attributes.lastModifiedTime().toMillis();
+
+            if(attributes.size() != entry.size){
+                return false;
+            }
+
+            if(modifiedTime == entry.modifiedTime){
+                return true;
+            }
+
+            if(getContentHash(filePath) != entry.hash){
+                return false;
+            }
+
+            // kept by save, so the content is not hashed again until the file is next touched
+            entries.put(filePath, new Entry(entry.size, modifiedTime, entry.hash, entry.anchors));
+            recordedPaths.add(filePath);
+            return true;
+
+        } catch(IOException e){
+            return false;
+        }
+
+    }
+
+    // Records the state of a file once it has been saved, given the size and modification time read before its
+    // content was hashed, the hash, and the locations of the anchor markers left in it. A modification time of -1
+    // is never current, so the next save compares the content hash instead.
+    public void record(String filePath, long size, long modifiedTime, long hash, List<AnchorLocation> anchors){
+        recordedPaths.add(filePath);
+        entries.put(filePath, new Entry(size, modifiedTime, hash, new ArrayList<AnchorLocation>(anchors)));
+    }
+
+    // Drops entries for files which are no longer target files.
+    public void retainAll(Collection<String> filePaths){
+        entries.keySet().retainAll(new HashSet<String>(filePaths));
+    }
+
+    // Returns the anchor ids recorded for every file which contained anchor markers when it was last saved, by file path.
+    public TreeMap<String, List<String>> getAnchoredFiles(){
+
+        TreeMap<String, List<String>> anchoredFiles = new TreeMap<String, List<String>>();
+
+        for(Map.Entry<String, Entry> entry : entries.entrySet()){
+
+            if(entry.getValue().anchors.isEmpty()){
+                continue;
+            }
+
+            ArrayList<String> anchorIds = new ArrayList<String>(entry.getValue().anchors.size());
+
+            for(AnchorLocation anchor : entry.getValue().anchors){
+                anchorIds.add(anchor.anchorId);
+            }
+
+            anchoredFiles.put(entry.getKey(), anchorIds);
+        }
+
+        return anchoredFiles;
+
+    }
+
+    // Returns the files which contained markers of any of the given anchor ids when they were last saved, by anchor id.
+    public HashMap<String, List<String>> getLocations(Set<String> anchorIds){
+
+        HashMap<String, List<String>> locations = new HashMap<String, List<String>>();
+
+        for(Map.Entry<String, Entry> entry : entries.entrySet()){
+            for(AnchorLocation anchor : entry.getValue().anchors){
+                if(anchorIds.contains(anchor.anchorId)){
+                    List<String> filePaths = locations.computeIfAbsent(anchor.anchorId, id -> new ArrayList<String>());
+                    if(filePaths.isEmpty() || !filePaths.get(filePaths.size() - 1).equals(entry.getKey())){
+                        filePaths.add(entry.getKey());
+                    }
+                }
+            }
+        }
+
+        for(List<String> filePaths : locations.values()){
+            Collections.sort(filePaths);
+        }
+
+        return locations;
+
+    }
+
+    // Returns the markers of an anchor id as of the last save, by file path.
+    public TreeMap<String, List<AnchorLocation>> locate(String anchorId){
+
+        TreeMap<String, List<AnchorLocation>> locations = new TreeMap<String, List<AnchorLocation>>();
+
+        for(Map.Entry<String, Entry> entry : entries.entrySet()){
+            for(AnchorLocation anchor : entry.getValue().anchors){
+                if(anchor.anchorId.equals(anchorId)){
+                    locations.computeIfAbsent(entry.getKey(), filePath -> new ArrayList<AnchorLocation>()).add(anchor);
+                }
+            }
+        }
+
+        return locations;
+
+    }
+
+    /*
+
+        Writes the manifest, with the store locked against concurrent saves. Entries for files which were not
+        recorded since the last save are taken from the manifest on disk, where a concurrent save may have recorded
+        them since this manifest was loaded.
+
+     */
+    public int save(){
+
+        StoreLock storeLock = StoreLock.get(initDirPathString);
+
+        try(StoreLock.Held store = storeLock == null ? null : storeLock.lockStore()){
+
+            if(store == null){
+                return -1;
+            }
+
+            for(Map.Entry<String, Entry> entry : load(initDirPathString).entries.entrySet()){
+                if(!recordedPaths.contains(entry.getKey()) && entries.containsKey(entry.getKey())){
+                    entries.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            recordedPaths.clear();
+
+            return write();
+
+        }
+
+    }
+
+    // Writes the manifest to a temporary file which then replaces manifest.txt, so an interrupted save leaves either
+    // the previous manifest or the new one, never a truncated one.
+    private int write(){
+
+        Path manifestPath = Path.of(manifestPathString);
+        Path tempPath = manifestPath.resolveSibling(manifestPath.getFileName() + ".tmp");
+
+        try(BufferedWriter manifestWriter = Files.newBufferedWriter(tempPath, Charset.defaultCharset())){
+
+            manifestWriter.write(MANIFEST_HEADER);
+            manifestWriter.newLine();
+
+            for(Map.Entry<String, Entry> entry : entries.entrySet()){
+
+                Entry value = entry.getValue();
+                manifestWriter.write(value.size + "\t" + value.modifiedTime + "\t" + Long.toHexString(value.hash) + "\t" + entry.getKey());
+                manifestWriter.newLine();
+
+                for(AnchorLocation anchor : value.anchors){
+                    manifestWriter.write("\t" + anchor.anchorId + "\t" + anchor.line + "\t" + anchor.offset);
+                    manifestWriter.newLine();
+                }
+
+            }
+
+        } catch(IOException e){
+            System.out.println("Failed writing file manifest!");
+            System.out.println(e);
+            try{
+                Files.deleteIfExists(tempPath);
+            } catch(IOException ignored){
+            }
+            return -1;
+        }
+
+        try{
+            Files.move(tempPath, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e){
+            System.out.println("Failed replacing file manifest!");
+            System.out.println(e);
+            return -1;
+        }
+
+        return 1;
+
+    }
+
+    private static long getContentHash(String filePath) throws IOException {
+
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        try(FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)){
+            while(channel.read(buffer) != -1){
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+
+        return crc.getValue();
+
+    }
+
+}
@@ -0,0 +1,372 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/*
+
+    Persistent index from comment id to the location of its data in a comment store, stored in .anchor\index.bin and
+    read into a heap buffer when opened. Offsets and lengths are interpreted by the store which wrote the index. The
+    file is not memory mapped, since it is replaced on every save, and Windows refuses to replace a file while a
+    mapping of it is live, which in Java lasts until the buffer happens to be garbage collected.
+
+    The file is laid out as:
+        header     {magic : 4} {store kind : 1} {entry count : 4} {slot count : 4} {store size : 8} {store dead bytes : 8}
+        slots      {entry number + 1 : 4} * slot count, an open addressing hash table keyed by id, 0 marks an empty slot
+        positions  {entry position : 4} * entry count, in id order
+        entries    {id length : 2} {id} {offset : 8} {length : 8}, in id order
+
+    A lookup is a single probe sequence through the slots, and since entries are sorted, prefix queries are a binary
+    search followed by a sequential scan. Entries are sorted by ID_ORDER, the order of the ids as the user types them,
+    e.g. "Same" before "Same2". Indexes written before that sort ids by their full form, e.g. "[Anchor.Same2]" before
+    "[Anchor.Same]", and have a magic number of their own, so they are sorted again when opened.
+
+ */
+class IdIndex {
+
+    private static final int INDEX_MAGIC = 0x414E434A;
+    private static final int FULL_ID_ORDER_INDEX_MAGIC = 0x414E4349;
+    private static final int HEADER_SIZE = 29;
+
+    // Orders comment ids as their short form, e.g. "Comment.ID" for "[Anchor.Comment.ID]", by ignoring the closing
+    // bracket, which would otherwise sort "[Anchor.Same]" after "[Anchor.Same2]". Prefixes, which have no closing
+    // bracket, sort right before the ids they start.
+    static final Comparator<String> ID_ORDER = IdIndex::compareIds;
+
+    static class Entry {
+        final String commentId;
+        final long offset;
+        final long length;
+
+        Entry(String commentId, long offset, long length){
+            this.commentId = commentId;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final int entryCount;
+    private final int slotCount;
+    private final long storeSize;
+    private final long storeDeadBytes;
+
+    private IdIndex(ByteBuffer buffer){
+        this.buffer = buffer;
+        this.entryCount = buffer.getInt(5);
+        this.slotCount = buffer.getInt(9);
+        this.storeSize = buffer.getLong(13);
+        this.storeDeadBytes = buffer.getLong(21);
+    }
+
+    // Reads the index file. Returns null if there is no index, or if it was written by a different kind of store.
+    public static IdIndex open(String indexPathString, byte storeKind){
+
+        Path indexPath = Path.of(indexPathString);
+
+        if(!Files.exists(indexPath)){
+            return null;
+        }
+
+        try(FileChannel indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ)){
+
+            if(indexChannel.size() < HEADER_SIZE || indexChannel.size() > Integer.MAX_VALUE){
+                return null;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) indexChannel.size());
+
+            while(buffer.hasRemaining()){
+                if(indexChannel.read(buffer) == -1){
+                    return null; // truncated since its size was read
+                }
+            }
+
+            if(buffer.getInt(0) == FULL_ID_ORDER_INDEX_MAGIC && buffer.get(4) == storeKind){
+                return sortEntries(new IdIndex(buffer), storeKind);
+            }
+
+            if(buffer.getInt(0) != INDEX_MAGIC || buffer.get(4) != storeKind){
+                return null;
+            }
+
+            return new IdIndex(buffer);
+
+        } catch(IOException e){
+            System.out.println("Error reading id index!");
+            System.out.println(e);
+            return null;
+        }
+
+    }
+
+    // Returns an index holding the entries of one sorted by the full form of their ids, sorted by ID_ORDER instead.
+    // The file is left as it is, until the store next writes its index.
+    private static IdIndex sortEntries(IdIndex fullIdOrderIndex, byte storeKind) throws IOException {
+
+        TreeMap<String, Entry> entries = new TreeMap<String, Entry>(ID_ORDER);
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+
+        entries.putAll(fullIdOrderIndex.getAll());
+
+        try(DataOutputStream indexStream = new DataOutputStream(indexBytes)){
+            writeEntries(indexStream, storeKind, entries, fullIdOrderIndex.storeSize, fullIdOrderIndex.storeDeadBytes);
+        }
+
+        return new IdIndex(ByteBuffer.wrap(indexBytes.toByteArray()));
+
+    }
+
+    // Writes a new index file, replacing any existing one. Entries must be keyed, and therefore sorted, by comment id
+    // in ID_ORDER.
+    public static int write(String indexPathString, byte storeKind, SortedMap<String, Entry> entries, long storeSize, long storeDeadBytes){
+
+        Path indexPath = Path.of(indexPathString);
+        Path tempPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+
+        try(DataOutputStream indexStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath), 64 * 1024))){
+            writeEntries(indexStream, storeKind, entries, storeSize, storeDeadBytes);
+        } catch(IOException e){
+            System.out.println("Failed writing id index!");
+            System.out.println(e);
+            return -1;
+        }
+
+        try{
+            Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e){
+            System.out.println("Failed replacing id index!");
+            System.out.println(e);
+            return -1;
+        }
+
+        return 1;
+
+    }
+
+    private static void writeEntries(DataOutputStream indexStream, byte storeKind, SortedMap<String, Entry> entries, long storeSize, long storeDeadBytes) throws IOException {
+
+        int slotCount = Integer.highestOneBit(Math.max(entries.size(), 8) * 2 - 1) << 1; // power of two, at most half full
+        int[] slots = new int[slotCount];
+        int[] positions = new int[entries.size()];
+        int position = HEADER_SIZE + slotCount * 4 + entries.size() * 4;
+        int entryNumber = 0;
+
+        for(Entry entry : entries.values()){
+
+            int slot = entry.commentId.hashCode() & (slotCount - 1);
+
+            while(slots[slot] != 0){
+                slot = (slot + 1) & (slotCount - 1);
+            }
+
+            slots[slot] = entryNumber + 1;
+            positions[entryNumber] = position;
+            position += 18 + entry.commentId.getBytes(StandardCharsets.UTF_8).length;
+            entryNumber++;
+        }
+
+        indexStream.writeInt(INDEX_MAGIC);
+        indexStream.writeByte(storeKind);
+        indexStream.writeInt(entries.size());
+        indexStream.writeInt(slotCount);
+        indexStream.writeLong(storeSize);
+        indexStream.writeLong(storeDeadBytes);
+
+        for(int slot : slots){
+            indexStream.writeInt(slot);
+        }
+
+        for(int entryPosition : positions){
+            indexStream.writeInt(entryPosition);
+        }
+
+        for(Entry entry : entries.values()){
+            byte[] idBytes = entry.commentId.getBytes(StandardCharsets.UTF_8);
+            indexStream.writeShort(idBytes.length);
+            indexStream.write(idBytes);
+            indexStream.writeLong(entry.offset);
+            indexStream.writeLong(entry.length);
+        }
+
+    }
+
+    public static int delete(String indexPathString){
+        try{
+            Files.deleteIfExists(Path.of(indexPathString));
+        } catch(IOException e){
+            System.out.println("Failed deleting id index!");
+            return -1;
+        }
+        return 1;
+    }
+
+    public int size(){
+        return entryCount;
+    }
+
+    public long getStoreSize(){
+        return storeSize;
+    }
+
+    public long getStoreDeadBytes(){
+        return storeDeadBytes;
+    }
+
+    // Returns the entry of a comment id, or null if it is not in the index.
+    public Entry get(String commentId){
+
+        byte[] idBytes = commentId.getBytes(StandardCharsets.UTF_8);
+        int slot = commentId.hashCode() & (slotCount - 1);
+
+        while(true){
+
+            int entryNumber = buffer.getInt(HEADER_SIZE + slot * 4);
+
+            if(entryNumber == 0){
+                return null;
+            }
+
+            int position = getEntryPosition(entryNumber - 1);
+
+            if(isIdAt(position, idBytes)){
+                return readEntry(position);
+            }
+
+            slot = (slot + 1) & (slotCount - 1);
+        }
+
+    }
+
+    // Returns all entries whose id starts with prefix, in id order.
+    public List<Entry> getByPrefix(String prefix){
+
+        ArrayList<Entry> result = new ArrayList<Entry>();
+
+        for(int i = search(prefix, false); i < entryCount; i++){
+
+            Entry entry = readEntry(getEntryPosition(i));
+
+            if(!entry.commentId.startsWith(prefix)){
+                break;
+            }
+
+            result.add(entry);
+        }
+
+        return result;
+
+    }
+
+    // Returns the entries after the given comment id, or every entry if it is null, in id order. Entries are decoded
+    // from the index buffer as the iterator advances.
+    public Iterator<Entry> iterateAfter(String commentId){
+
+        int first = commentId == null ? 0 : search(commentId, true);
+
+        return new Iterator<Entry>(){
+
+            private int next = first;
+
+            public boolean hasNext(){
+                return next < entryCount;
+            }
+
+            public Entry next(){
+                if(next >= entryCount){
+                    throw new NoSuchElementException();
+                }
+                return readEntry(getEntryPosition(next++));
+            }
+
+        };
+
+    }
+
+    // Returns every entry, in id order.
+    public TreeMap<String, Entry> getAll(){
+
+        TreeMap<String, Entry> result = new TreeMap<String, Entry>(ID_ORDER);
+
+        for(int i = 0; i < entryCount; i++){
+            Entry entry = readEntry(getEntryPosition(i));
+            result.put(entry.commentId, entry);
+        }
+
+        return result;
+
+    }
+
+    // Returns the number of the first entry with an id greater than the given one, or equal to it unless isExclusive is set.
+    private int search(String commentId, boolean isExclusive){
+
+        int low = 0;
+        int high = entryCount;
+
+        while(low < high){
+            int middle = (low + high) >>> 1;
+            int comparison = compareIds(readEntry(getEntryPosition(middle)).commentId, commentId);
+            if(comparison < 0 || comparison == 0 && isExclusive){
+                low = middle + 1;
+            }
+            else{
+                high = middle;
+            }
+        }
+
+        return low;
+
+    }
+
+    private static int compareIds(String first, String second){
+
+        int firstLength = first.endsWith("]") ? first.length() - 1 : first.length();
+        int secondLength = second.endsWith("]") ? second.length() - 1 : second.length();
+
+        for(int i = 0; i < Math.min(firstLength, secondLength); i++){
+            if(first.charAt(i) != second.charAt(i)){
+                return first.charAt(i) - second.charAt(i);
+            }
+        }
+
+        return firstLength - secondLength;
+
+    }
+
+    private int getEntryPosition(int entryNumber){
+        return buffer.getInt(HEADER_SIZE + slotCount * 4 + entryNumber * 4);
+    }
+
+    private boolean isIdAt(int position, byte[] idBytes){
+
+        if(Short.toUnsignedInt(buffer.getShort(position)) != idBytes.length){
+            return false;
+        }
+
+        for(int i = 0; i < idBytes.length; i++){
+            if(buffer.get(position + 2 + i) != idBytes[i]){
+                return false;
+            }
+        }
+
+        return true;
+
+    }
+
+    private Entry readEntry(int position){
+
+        int idLength = Short.toUnsignedInt(buffer.getShort(position));
+        byte[] idBytes = new byte[idLength];
+
+        buffer.get(position + 2, idBytes);
+
+        return new Entry(new String(idBytes, StandardCharsets.UTF_8), buffer.getLong(position + 2 + idLength), buffer.getLong(position + 10 + idLength));
+
+    }
+
+}
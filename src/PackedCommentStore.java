@@ -0,0 +1,747 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+
+/*
+
+    Storage engine which keeps the data of every anchor in a single append-only log, .anchor\store.log, so that a
+    save is a single sequential write regardless of how many anchors it stores.
+
+    The log starts with a 4 byte magic number and a 1 byte version, followed by records of the form:
+        {option : 1 byte} {previous record offset : 8 bytes} {id length : 2 bytes} {id} {body length : 4 bytes} {body}
+
+    The option is one of u (update), a (append) or r (remove). With "compression=deflate", the body of an update or
+    append record is a chunk of deflated data written by a CommentCodec, and its option has the COMPRESSED bit set, so
+    a log may mix both forms and stays readable whichever way the setting is changed. Appended records point back at
+    the previous record of the same anchor, so the current data of an anchor is read by following that chain back to an update record or
+    the start of the chain. Superseded and removed records are dropped by compact(), which runs after a save once
+    more than half of the log is dead.
+
+    The id index stores the offset of the latest record of every anchor, and the size of its chain of records, as of
+    the log size recorded in its header. While that size matches the log, reads go straight to the indexed record and
+    saves skip scanning the log. A compacted anchor is then read with a single positional read.
+
+ */
+class PackedCommentStore implements CommentStore {
+
+    private static final int LOG_MAGIC = 0x414E434C;
+    private static final byte LOG_VERSION = 1;
+    private static final int LOG_HEADER_SIZE = 5;
+    private static final int RECORD_HEADER_SIZE = 15;
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+    private static final byte STORE_KIND = 'p';
+
+    static final byte UPDATE = 'u';
+    static final byte APPEND = 'a';
+    static final byte REMOVE = 'r';
+    private static final int COMPRESSED = 0x80;
+
+    private static class Record {
+        byte option; // without the COMPRESSED bit
+        boolean isCompressed;
+        long previousOffset;
+        String commentId;
+        byte[] body;
+    }
+
+    private final String initDirPathString;
+    private final Path logPath;
+    private final String indexPathString;
+    private final CommentCodec codec;
+    private final boolean isCompressed;
+    private IdIndex index;
+    private final HashMap<String, Long> latestOffsets = new HashMap<String, Long>(); // offset of latest record per id
+    private final HashMap<String, Long> chainSizes = new HashMap<String, Long>(); // bytes of live records per id
+    private long logSize = 0;
+    private long deadBytes = 0;
+    private boolean isLoaded = false;
+
+    PackedCommentStore(String initDirPathString, CommentCodec codec, boolean isCompressed){
+        this.initDirPathString = initDirPathString;
+        this.logPath = Path.of(initDirPathString + "\\store.log");
+        this.indexPathString = initDirPathString + "\\index.bin";
+        this.codec = codec;
+        this.isCompressed = isCompressed;
+    }
+
+    // Appends the plan to the log with the store locked, since the log has a single end for concurrent saves to write at.
+    public int write(WritePlan plan){
+
+        StoreLock storeLock = StoreLock.get(initDirPathString);
+
+        try(StoreLock.Held store = storeLock == null ? null : storeLock.lockStore()){
+
+            if(store == null){
+                return -1;
+            }
+
+            isLoaded = false; // another process may have written to the log since it was loaded
+            index = null;
+
+            if(isCompressed && codec.isDictionaryNeeded() && codec.trainDictionary(plan, this) == -1){
+                return -1;
+            }
+
+            return append(plan);
+
+        }
+
+    }
+
+    private int append(WritePlan plan){
+
+        if(load() == -1){
+            return -1;
+        }
+
+        try(FileChannel logChannel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)){
+
+            if(logSize == 0){
+                logChannel.truncate(0);
+                logChannel.write(ByteBuffer.allocate(LOG_HEADER_SIZE).putInt(LOG_MAGIC).put(LOG_VERSION).flip());
+                logSize = LOG_HEADER_SIZE;
+            }
+
+            logChannel.truncate(logSize); // drop any partially written record left by an interrupted save
+            logChannel.position(logSize);
+
+            DataOutputStream logStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(logChannel), 64 * 1024));
+
+            for(Map.Entry<String, WritePlan.Op> entry : plan.getOps().entrySet()){
+
+                String commentId = entry.getKey();
+                WritePlan.Op op = entry.getValue();
+
+                switch(op.kind){
+                    case APPEND:
+                        writeRecord(logStream, APPEND, commentId, op.data);
+                        break;
+                    case REPLACE:
+                        writeRecord(logStream, UPDATE, commentId, op.data);
+                        break;
+                    case DELETE:
+                        if(latestOffsets.containsKey(commentId)){
+                            writeRecord(logStream, REMOVE, commentId, "");
+                        }
+                        break;
+                }
+
+            }
+
+            logStream.flush();
+
+        } catch(IOException e){
+            System.out.println("Failed writing comment data to store log!");
+            System.out.println(e);
+            isLoaded = false; // in memory offsets may no longer match the log
+            return -1;
+        }
+
+        if(logSize >= MIN_COMPACTION_SIZE && deadBytes * 2 > logSize){
+            return compact();
+        }
+
+        return writeIndex();
+
+    }
+
+    public String read(String commentId){
+
+        IdIndex currentIndex = getIndex();
+        long offset;
+        long length;
+
+        if(currentIndex != null){
+            IdIndex.Entry entry = currentIndex.get(commentId);
+            if(entry == null){
+                return null;
+            }
+            offset = entry.offset;
+            length = entry.length;
+        }
+        else{
+            if(load() == -1 || !latestOffsets.containsKey(commentId)){
+                return null;
+            }
+            offset = latestOffsets.get(commentId);
+            length = chainSizes.get(commentId);
+        }
+
+        try(FileChannel logChannel = FileChannel.open(logPath, StandardOpenOption.READ)){
+            return new String(readBody(logChannel, offset, length), StandardCharsets.UTF_8);
+        } catch(IOException e){
+            System.out.println("Error reading from store log!");
+            System.out.println(e);
+            return null;
+        }
+
+    }
+
+    // Reads many comments through a single channel on the log, rather than opening it once per comment.
+    public HashMap<String, String> read(Collection<String> commentIds){
+
+        HashMap<String, String> result = new HashMap<String, String>();
+        IdIndex currentIndex = getIndex();
+
+        if(currentIndex == null && load() == -1){
+            return null;
+        }
+
+        if(!Files.exists(logPath)){
+            return result;
+        }
+
+        try(FileChannel logChannel = FileChannel.open(logPath, StandardOpenOption.READ)){
+
+            for(String commentId : commentIds){
+
+                long offset;
+
+                if(currentIndex != null){
+                    IdIndex.Entry entry = currentIndex.get(commentId);
+                    if(entry == null){
+                        continue;
+                    }
+                    offset = entry.offset;
+                }
+                else{
+                    if(!latestOffsets.containsKey(commentId)){
+                        continue;
+                    }
+                    offset = latestOffsets.get(commentId);
+                }
+
+                // records are read rather than mapped, since every mapping is held until the buffer is collected, and
+                // Windows refuses to replace the log on compaction while any mapping of it is live
+                result.put(commentId, new String(readBody(logChannel, offset, 0), StandardCharsets.UTF_8));
+
+            }
+
+        } catch(IOException e){
+            System.out.println("Error reading from store log!");
+            System.out.println(e);
+            return null;
+        }
+
+        return result;
+
+    }
+
+    // Copies the body of an anchor stored in a single uncompressed record, e.g. once compacted, straight from the log.
+    // Anchors with a chain of appended records, or compressed bodies, are read by the default.
+    public long transferTo(String commentId, FileChannel target) throws IOException {
+
+        IdIndex currentIndex = getIndex();
+
+        if(currentIndex == null){
+            return CommentStore.super.transferTo(commentId, target);
+        }
+
+        IdIndex.Entry entry = currentIndex.get(commentId);
+
+        if(entry == null){
+            return -1;
+        }
+
+        try(FileChannel logChannel = FileChannel.open(logPath, StandardOpenOption.READ)){
+
+            ByteBuffer header = readFully(logChannel, entry.offset, 11);
+            byte option = header.get();
+            long previousOffset = header.getLong();
+            int idLength = Short.toUnsignedInt(header.getShort());
+
+            if(getKind(option) == APPEND && previousOffset >= 0 || (option & COMPRESSED) != 0){
+                return CommentStore.super.transferTo(commentId, target);
+            }
+
+            int bodyLength = readFully(logChannel, entry.offset + 11 + idLength, 4).getInt();
+
+            return CommentStore.transferFully(logChannel, entry.offset + RECORD_HEADER_SIZE + idLength, bodyLength, target);
+
+        }
+
+    }
+
+    public List<String> getCommentIds(String prefix){
+
+        ArrayList<String> result = new ArrayList<String>();
+        IdIndex currentIndex = getIndex();
+
+        if(currentIndex != null){
+            for(IdIndex.Entry entry : currentIndex.getByPrefix(prefix)){
+                result.add(entry.commentId);
+            }
+            return result;
+        }
+
+        if(load() == -1){
+            return result;
+        }
+
+        TreeSet<String> commentIds = new TreeSet<String>(IdIndex.ID_ORDER);
+
+        commentIds.addAll(latestOffsets.keySet());
+
+        for(String commentId : commentIds){
+            if(commentId.startsWith(prefix)){
+                result.add(commentId);
+            }
+        }
+
+        return result;
+
+    }
+
+    public int list(String afterId, Predicate<Listing> visitor){
+
+        IdIndex currentIndex = getIndex();
+        Iterator<IdIndex.Entry> entries;
+
+        if(currentIndex != null){
+            entries = currentIndex.iterateAfter(afterId);
+        }
+        else{
+
+            if(load() == -1){
+                return -1;
+            }
+
+            // without an up to date index, the offsets loaded from the log are listed instead
+            TreeMap<String, Long> offsets = new TreeMap<String, Long>(IdIndex.ID_ORDER);
+            ArrayList<IdIndex.Entry> loadedEntries = new ArrayList<IdIndex.Entry>();
+
+            offsets.putAll(latestOffsets);
+
+            for(Map.Entry<String, Long> entry : (afterId == null ? offsets : offsets.tailMap(afterId, false)).entrySet()){
+                loadedEntries.add(new IdIndex.Entry(entry.getKey(), entry.getValue(), chainSizes.get(entry.getKey())));
+            }
+
+            entries = loadedEntries.iterator();
+
+        }
+
+        if(!Files.exists(logPath)){
+            return 1;
+        }
+
+        try(FileChannel logChannel = FileChannel.open(logPath, StandardOpenOption.READ)){
+
+            while(entries.hasNext()){
+
+                IdIndex.Entry entry = entries.next();
+
+                if(!visitor.test(readListing(logChannel, entry.commentId, entry.offset, entry.length))){
+                    break;
+                }
+
+            }
+
+        } catch(IOException e){
+            System.out.println("Error reading from store log!");
+            System.out.println(e);
+            return -1;
+        }
+
+        return 1;
+
+    }
+
+    // Rewrites the log with a single update record per stored anchor, dropping superseded and removed records.
+    public int compact(){
+
+        if(load() == -1){
+            return -1;
+        }
+
+        Path compactPath = logPath.resolveSibling(logPath.getFileName() + ".compact");
+        TreeMap<String, Long> liveOffsets = new TreeMap<String, Long>(latestOffsets);
+
+        try(FileChannel logChannel = FileChannel.open(logPath, StandardOpenOption.READ);
+            DataOutputStream compactStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(compactPath), 64 * 1024))){
+
+            latestOffsets.clear();
+            chainSizes.clear();
+            deadBytes = 0;
+
+            compactStream.writeInt(LOG_MAGIC);
+            compactStream.writeByte(LOG_VERSION);
+            logSize = LOG_HEADER_SIZE;
+
+            for(Map.Entry<String, Long> entry : liveOffsets.entrySet()){
+                writeRecord(compactStream, UPDATE, entry.getKey(), new String(readBody(logChannel, entry.getValue(), 0), StandardCharsets.UTF_8));
+            }
+
+        } catch(IOException e){
+            System.out.println("Failed compacting store log!");
+            System.out.println(e);
+            isLoaded = false;
+            try{
+                Files.deleteIfExists(compactPath);
+            } catch(IOException ignored){
+            }
+            return -1;
+        }
+
+        try{
+            Files.move(compactPath, logPath, StandardCopyOption.REPLACE_EXISTING);
+        } catch(IOException e){
+            System.out.println("Failed replacing store log with compacted log!");
+            System.out.println(e);
+            isLoaded = false;
+            return -1;
+        }
+
+        return writeIndex();
+
+    }
+
+    // Returns the id index if it is up to date with the log, otherwise null.
+    private IdIndex getIndex(){
+
+        if(index == null){
+            index = IdIndex.open(indexPathString, STORE_KIND);
+        }
+
+        try{
+            if(index != null && Files.exists(logPath) && index.getStoreSize() == Files.size(logPath)){
+                return index;
+            }
+        } catch(IOException ignored){
+        }
+
+        index = null;
+        return null;
+
+    }
+
+    private int writeIndex(){
+
+        TreeMap<String, IdIndex.Entry> entries = new TreeMap<String, IdIndex.Entry>(IdIndex.ID_ORDER);
+
+        for(Map.Entry<String, Long> entry : latestOffsets.entrySet()){
+            entries.put(entry.getKey(), new IdIndex.Entry(entry.getKey(), entry.getValue(), chainSizes.get(entry.getKey())));
+        }
+
+        index = null;
+        return IdIndex.write(indexPathString, STORE_KIND, entries, logSize, deadBytes);
+
+    }
+
+    /*
+
+        Loads the latest record of every anchor from the id index, or by scanning the record headers of the log if the
+        index is out of date, in which case the index is rebuilt. Reads can get here too, so the rebuild takes the store
+        lock, which a save appending to the log holds, and looks at the index again once it has the lock, since that
+        save may have just brought it up to date.
+
+     */
+    private int load(){
+
+        if(isLoaded){
+            return 1;
+        }
+
+        latestOffsets.clear();
+        chainSizes.clear();
+        deadBytes = 0;
+        logSize = 0;
+
+        if(!Files.exists(logPath)){
+            isLoaded = true;
+            return 1;
+        }
+
+        if(loadIndex()){
+            return 1;
+        }
+
+        StoreLock storeLock = StoreLock.get(initDirPathString);
+
+        try(StoreLock.Held store = storeLock == null ? null : storeLock.lockStore()){
+
+            if(store == null){
+                return -1;
+            }
+
+            if(loadIndex()){
+                return 1;
+            }
+
+            if(scanLog() == -1){
+                return -1;
+            }
+
+            isLoaded = true;
+            return writeIndex();
+
+        }
+
+    }
+
+    // Loads the latest records from the id index if it is up to date with the log. Returns false if it is not.
+    private boolean loadIndex(){
+
+        IdIndex currentIndex = getIndex();
+
+        if(currentIndex == null){
+            return false;
+        }
+
+        for(IdIndex.Entry entry : currentIndex.getAll().values()){
+            latestOffsets.put(entry.commentId, entry.offset);
+            chainSizes.put(entry.commentId, entry.length);
+        }
+
+        deadBytes = currentIndex.getStoreDeadBytes();
+        logSize = currentIndex.getStoreSize();
+        isLoaded = true;
+        return true;
+
+    }
+
+    // Loads the latest records by scanning the record headers of the log, up to the first partially written record.
+    private int scanLog(){
+
+        try(DataInputStream logStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath), 64 * 1024))){
+
+            long size = Files.size(logPath);
+
+            if(size < LOG_HEADER_SIZE){
+                return 1;
+            }
+
+            if(logStream.readInt() != LOG_MAGIC || logStream.readByte() != LOG_VERSION){
+                System.out.println("Store log has an unsupported format!");
+                return -1;
+            }
+
+            long offset = LOG_HEADER_SIZE;
+
+            while(offset + RECORD_HEADER_SIZE <= size){
+
+                byte option = logStream.readByte();
+                logStream.readLong();
+                int idLength = logStream.readUnsignedShort();
+
+                if(offset + RECORD_HEADER_SIZE + idLength > size){
+                    break; // partially written record, cut off within its id or body length
+                }
+
+                byte[] idBytes = new byte[idLength];
+                logStream.readFully(idBytes);
+                int bodyLength = logStream.readInt();
+                long recordSize = RECORD_HEADER_SIZE + idBytes.length + bodyLength;
+
+                if(bodyLength < 0 || offset + recordSize > size){
+                    break; // partially written record
+                }
+
+                logStream.skipNBytes(bodyLength);
+                applyRecord(getKind(option), new String(idBytes, StandardCharsets.UTF_8), offset, recordSize);
+                offset += recordSize;
+            }
+
+            logSize = offset;
+
+        } catch(IOException e){
+            System.out.println("Error reading store log!");
+            System.out.println(e);
+            return -1;
+        }
+
+        return 1;
+
+    }
+
+    private void applyRecord(byte option, String commentId, long offset, long recordSize){
+
+        long chainSize = chainSizes.getOrDefault(commentId, 0L);
+
+        if(option == APPEND){
+            chainSizes.put(commentId, chainSize + recordSize);
+            latestOffsets.put(commentId, offset);
+        }
+        else if(option == UPDATE){
+            deadBytes += chainSize;
+            chainSizes.put(commentId, recordSize);
+            latestOffsets.put(commentId, offset);
+        }
+        else{
+            deadBytes += chainSize + recordSize;
+            chainSizes.remove(commentId);
+            latestOffsets.remove(commentId);
+        }
+
+    }
+
+    // Writes a record, deflating its body if compression is enabled.
+    private void writeRecord(DataOutputStream logStream, byte option, String commentId, String body) throws IOException {
+        if(isCompressed && option != REMOVE){
+            writeRecord(logStream, (byte) (option | COMPRESSED), commentId, codec.compress(body));
+        }
+        else{
+            writeRecord(logStream, option, commentId, body.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void writeRecord(DataOutputStream logStream, byte option, String commentId, byte[] body) throws IOException {
+
+        byte[] idBytes = commentId.getBytes(StandardCharsets.UTF_8);
+        Long previousOffset = latestOffsets.get(commentId);
+        long recordSize = RECORD_HEADER_SIZE + idBytes.length + body.length;
+
+        logStream.writeByte(option);
+        logStream.writeLong(getKind(option) == APPEND && previousOffset != null ? previousOffset : -1);
+        logStream.writeShort(idBytes.length);
+        logStream.write(idBytes);
+        logStream.writeInt(body.length);
+        logStream.write(body);
+
+        applyRecord(getKind(option), commentId, logSize, recordSize);
+        logSize += recordSize;
+
+    }
+
+    /*
+
+        Reads the current data of an anchor by following its chain of appended records back from the latest record.
+        When the size of the chain is known, the region it starts at is read at once, which covers the latest record and
+        so reads a compacted anchor in one go. Compressed bodies are inflated, so the result is always UTF-8 text.
+
+     */
+    private byte[] readBody(FileChannel logChannel, long offset, long chainSize) throws IOException {
+
+        ArrayList<byte[]> bodies = new ArrayList<byte[]>();
+        int length = 0;
+        boolean isRegionRead = chainSize > 0 && chainSize <= Integer.MAX_VALUE;
+
+        while(offset >= 0){
+
+            Record record = isRegionRead ? readRecord(readFully(logChannel, offset, (int) Math.min(chainSize, logChannel.size() - offset))) : readRecord(logChannel, offset);
+            isRegionRead = false;
+
+            byte[] body = record.isCompressed ? decompress(record.body) : record.body;
+
+            bodies.add(body);
+            length += body.length;
+
+            if(record.option != APPEND){
+                break;
+            }
+
+            offset = record.previousOffset;
+        }
+
+        ByteBuffer result = ByteBuffer.allocate(length);
+
+        for(int i = bodies.size() - 1; i >= 0; i--){
+            result.put(bodies.get(i));
+        }
+
+        return result.array();
+
+    }
+
+    // Lists an anchor by following its chain of records back from the latest record, reading only their headers. The
+    // body size is what remains of the chain size once the headers of its records are taken off.
+    private static Listing readListing(FileChannel logChannel, String commentId, long offset, long chainSize) throws IOException {
+
+        ArrayDeque<String> options = new ArrayDeque<String>();
+        int idLength = commentId.getBytes(StandardCharsets.UTF_8).length;
+
+        while(offset >= 0){
+
+            ByteBuffer header = readFully(logChannel, offset, 9);
+            byte option = getKind(header.get());
+
+            options.addFirst(option == APPEND ? "-a" : "-u");
+
+            if(option != APPEND){
+                break;
+            }
+
+            offset = header.getLong();
+        }
+
+        return new Listing(commentId, chainSize - (long) options.size() * (RECORD_HEADER_SIZE + idLength), new ArrayList<String>(options));
+
+    }
+
+    private static Record readRecord(FileChannel logChannel, long offset) throws IOException {
+
+        Record record = new Record();
+        ByteBuffer header = readFully(logChannel, offset, 11);
+        byte option = header.get();
+
+        record.option = getKind(option);
+        record.isCompressed = (option & COMPRESSED) != 0;
+        record.previousOffset = header.getLong();
+
+        int idLength = Short.toUnsignedInt(header.getShort());
+        ByteBuffer idAndLength = readFully(logChannel, offset + 11, idLength + 4);
+        byte[] idBytes = new byte[idLength];
+
+        idAndLength.get(idBytes);
+        record.commentId = new String(idBytes, StandardCharsets.UTF_8);
+        record.body = readFully(logChannel, offset + 15 + idLength, idAndLength.getInt()).array();
+
+        return record;
+
+    }
+
+    private static Record readRecord(ByteBuffer recordBuffer){
+
+        Record record = new Record();
+        byte[] idBytes;
+        byte option = recordBuffer.get();
+
+        record.option = getKind(option);
+        record.isCompressed = (option & COMPRESSED) != 0;
+        record.previousOffset = recordBuffer.getLong();
+        idBytes = new byte[Short.toUnsignedInt(recordBuffer.getShort())];
+        recordBuffer.get(idBytes);
+        record.commentId = new String(idBytes, StandardCharsets.UTF_8);
+        record.body = new byte[recordBuffer.getInt()];
+        recordBuffer.get(record.body);
+
+        return record;
+
+    }
+
+    private byte[] decompress(byte[] body) throws IOException {
+        try{
+            return codec.decompress(ByteBuffer.wrap(body)).getBytes(StandardCharsets.UTF_8);
+        } catch(DataFormatException e){
+            throw new IOException("Corrupt compressed record in store log", e);
+        }
+    }
+
+    // Returns the option of a record without the COMPRESSED bit.
+    private static byte getKind(byte option){
+        return (byte) (option & ~COMPRESSED);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer, position + buffer.position()) == -1){
+                throw new EOFException("Unexpected end of store log");
+            }
+        }
+
+        return buffer.flip();
+
+    }
+
+}
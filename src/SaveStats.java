@@ -0,0 +1,242 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+
+    Timings and I/O counters collected during a save. "anchor save --stats" prints them and appends them as a single
+    JSON line to .anchor\stats.jsonl, so that saves can be compared over time.
+
+    Every phase and every processed file is also emitted as a JDK Flight Recorder event while a recording is running,
+    e.g. java -XX:StartFlightRecording=filename=save.jfr Anchor save. Otherwise the events are not created at all,
+    since loading the first event class initializes JFR, which costs more than a save of a few files.
+
+ */
+class SaveStats {
+
+    private static final int SLOWEST_FILE_COUNT = 10;
+
+    @Name("anchor.SavePhase")
+    @Label("Save Phase")
+    @Category("Anchor")
+    @Description("A phase of anchor save, e.g. discovering target files or writing the comment store")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+    }
+
+    @Name("anchor.FileSave")
+    @Label("File Save")
+    @Category("Anchor")
+    @Description("Pre-scan, extraction and rewrite of a single target file")
+    static class FileEvent extends Event {
+        @Label("Path")
+        String path;
+        @Label("Bytes Read")
+        long bytesRead;
+        @Label("Bytes Written")
+        long bytesWritten;
+        @Label("Anchors")
+        int anchorCount;
+        @Label("Skipped")
+        boolean isSkipped;
+        @Label("Rewritten")
+        boolean isRewritten;
+    }
+
+    // A running phase. end() records its wall time and commits its event.
+    class Phase {
+        private final String name;
+        private final long startNanos = System.nanoTime();
+        private final PhaseEvent event = isRecording() ? new PhaseEvent() : null;
+
+        Phase(String name){
+            this.name = name;
+            if(event != null){
+                event.phase = name;
+                event.begin();
+            }
+        }
+
+        void end(){
+            if(event != null){
+                event.commit();
+            }
+            phaseNanos.merge(name, System.nanoTime() - startNanos, Long::sum);
+        }
+    }
+
+    private static class FileTiming {
+        final String filePath;
+        final long nanos;
+
+        FileTiming(String filePath, long nanos){
+            this.filePath = filePath;
+            this.nanos = nanos;
+        }
+    }
+
+    private final LinkedHashMap<String, Long> phaseNanos = new LinkedHashMap<String, Long>();
+    private final TreeMap<String, Long> operationCounts = new TreeMap<String, Long>();
+    private final PriorityQueue<FileTiming> slowestFiles = new PriorityQueue<FileTiming>(Comparator.comparingLong(timing -> timing.nanos));
+    private long filesScanned = 0;
+    private long filesSkipped = 0;
+    private long filesRewritten = 0;
+    private long bytesRead = 0;
+    private long bytesWritten = 0;
+    private long bytesStored = 0;
+
+    // Returns true if JFR has been started, by a recording given on the command line or started since, e.g. by jcmd.
+    static boolean isRecording(){
+        return FlightRecorder.isInitialized();
+    }
+
+    public Phase begin(String name){
+        return new Phase(name);
+    }
+
+    // Records the outcome of a processed target file. Not thread safe, files are recorded as results are merged.
+    public void recordFile(String filePath, boolean isSkipped, boolean isRewritten, long fileBytesRead, long fileBytesWritten, long nanos){
+
+        if(isSkipped){
+            filesSkipped++;
+            return;
+        }
+
+        filesScanned++;
+        bytesRead += fileBytesRead;
+        bytesWritten += fileBytesWritten;
+
+        if(isRewritten){
+            filesRewritten++;
+        }
+
+        slowestFiles.add(new FileTiming(filePath, nanos));
+
+        if(slowestFiles.size() > SLOWEST_FILE_COUNT){
+            slowestFiles.poll();
+        }
+
+    }
+
+    // Records the operations and bytes of comment data handed to the comment store, once the write plans of every
+    // file have been merged, so an id appearing in several files counts as the single operation it is stored as.
+    public void recordStored(WritePlan plan){
+        for(WritePlan.Op op : plan.getOps().values()){
+            operationCounts.merge(op.kind.name().toLowerCase(), 1L, Long::sum);
+            bytesStored += op.data == null ? 0 : op.data.length();
+        }
+    }
+
+    public void print(){
+
+        System.out.println("Phase timings:");
+
+        for(Map.Entry<String, Long> entry : phaseNanos.entrySet()){
+            System.out.println(String.format("  %-12s %10.1f ms", entry.getKey(), entry.getValue() / 1e6));
+        }
+
+        System.out.println("Files: " + filesScanned + " scanned, " + filesSkipped + " skipped, " + filesRewritten + " rewritten");
+        System.out.println("Bytes: " + bytesRead + " read, " + bytesWritten + " written, " + bytesStored + " of comment data stored");
+        System.out.println("Operations: " + operationCounts.values().stream().mapToLong(Long::longValue).sum() + " planned " + operationCounts);
+
+        if(!slowestFiles.isEmpty()){
+            System.out.println("Slowest files:");
+            for(FileTiming timing : getSlowestFiles()){
+                System.out.println(String.format("  %10.1f ms  %s", timing.nanos / 1e6, timing.filePath));
+            }
+        }
+
+    }
+
+    // Appends the stats as a single line of JSON to .anchor\stats.jsonl.
+    public int writeReport(String initDirPathString){
+
+        StringBuilder report = new StringBuilder();
+
+        report.append("{\"timestamp\":\"").append(Instant.now()).append("\",\"phasesMs\":{");
+        appendJsonMap(report, phaseNanos, 1e6);
+        report.append("},\"filesScanned\":").append(filesScanned);
+        report.append(",\"filesSkipped\":").append(filesSkipped);
+        report.append(",\"filesRewritten\":").append(filesRewritten);
+        report.append(",\"bytesRead\":").append(bytesRead);
+        report.append(",\"bytesWritten\":").append(bytesWritten);
+        report.append(",\"bytesStored\":").append(bytesStored);
+        report.append(",\"operations\":{");
+        appendJsonMap(report, operationCounts, 1);
+        report.append("},\"slowestFiles\":[");
+
+        List<FileTiming> timings = getSlowestFiles();
+
+        for(int i = 0; i < timings.size(); i++){
+            report.append(i == 0 ? "" : ",").append("{\"path\":").append(toJsonString(timings.get(i).filePath));
+            report.append(",\"ms\":").append(timings.get(i).nanos / 1e6).append('}');
+        }
+
+        report.append("]}").append(System.lineSeparator());
+
+        try{
+            Files.writeString(Path.of(initDirPathString + "\\stats.jsonl"), report, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch(IOException e){
+            System.out.println("Failed writing stats report!");
+            System.out.println(e);
+            return -1;
+        }
+
+        return 1;
+
+    }
+
+    private List<FileTiming> getSlowestFiles(){
+        List<FileTiming> timings = new ArrayList<FileTiming>(slowestFiles);
+        timings.sort((a, b) -> Long.compare(b.nanos, a.nanos));
+        return timings;
+    }
+
+    private static void appendJsonMap(StringBuilder json, Map<String, Long> values, double divisor){
+
+        boolean isFirst = true;
+
+        for(Map.Entry<String, Long> entry : values.entrySet()){
+            json.append(isFirst ? "" : ",").append(toJsonString(entry.getKey())).append(':');
+            json.append(divisor == 1 ? String.valueOf(entry.getValue()) : String.valueOf(entry.getValue() / divisor));
+            isFirst = false;
+        }
+
+    }
+
+    static String toJsonString(String value){
+
+        StringBuilder json = new StringBuilder("\"");
+
+        for(int i = 0; i < value.length(); i++){
+
+            char current = value.charAt(i);
+
+            if(current == '"' || current == '\\'){
+                json.append('\\').append(current);
+            }
+            else if(current < 0x20){
+                json.append(String.format("\\u%04x", (int) current));
+            }
+            else{
+                json.append(current);
+            }
+
+        }
+
+        return json.append('"').toString();
+
+    }
+
+}
@@ -0,0 +1,585 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/*
+
+    Inverted index over the stored comment data, used by "anchor search". Comment data is split into lower case terms
+    made of letters and digits, and each term maps to the anchors containing it along with the term's positions.
+
+    The index is stored in .anchor\search.idx and read into a heap buffer when opened, rather than mapped, since every
+    save replaces the file and Windows refuses to replace a file while a mapping of it is live:
+        header      {magic : 4} {anchor count : 4} {term count : 4} {anchor table : 8} {term table : 8}
+        postings    per term, for each anchor containing it: {anchor number delta} {term count} {position deltas}
+        anchors     {entry position : 8} * anchor count, then {id length : 2} {id} {term count : 4} per anchor
+        terms       {entry position : 8} * term count, then {term length : 2} {term} {postings : 8} {anchor count : 4}
+    Postings are written as variable length integers. Anchors and terms are sorted, so a term is found by binary search.
+
+    update() only tokenizes the anchors touched by a save. The rest of the index is carried over from the previous file.
+
+ */
+class SearchIndex {
+
+    private static final int INDEX_MAGIC = 0x414E4353;
+    private static final int HEADER_SIZE = 28;
+
+    static class Result {
+        final String commentId;
+        final double score;
+
+        Result(String commentId, double score){
+            this.commentId = commentId;
+            this.score = score;
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final int anchorCount;
+    private final int termCount;
+    private final long anchorTablePosition;
+    private final long termTablePosition;
+
+    private SearchIndex(ByteBuffer buffer){
+        this.buffer = buffer;
+        this.anchorCount = buffer.getInt(4);
+        this.termCount = buffer.getInt(8);
+        this.anchorTablePosition = buffer.getLong(12);
+        this.termTablePosition = buffer.getLong(20);
+    }
+
+    private static String getIndexPathString(String initDirPathString){
+        return initDirPathString + "\\search.idx";
+    }
+
+    public static SearchIndex open(String initDirPathString){
+
+        Path indexPath = Path.of(getIndexPathString(initDirPathString));
+
+        if(!Files.exists(indexPath)){
+            return null;
+        }
+
+        try(FileChannel indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ)){
+
+            if(indexChannel.size() < HEADER_SIZE || indexChannel.size() > Integer.MAX_VALUE){
+                System.out.println("Search index has an unsupported format!");
+                return null;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) indexChannel.size());
+
+            while(buffer.hasRemaining() && indexChannel.read(buffer) != -1);
+
+            if(buffer.hasRemaining() || buffer.getInt(0) != INDEX_MAGIC){
+                System.out.println("Search index has an unsupported format!");
+                return null;
+            }
+
+            return new SearchIndex(buffer);
+
+        } catch(IOException e){
+            System.out.println("Error reading search index!");
+            System.out.println(e);
+            return null;
+        }
+
+    }
+
+    // Re-indexes the given comments from their stored data, keeping the entries of every other comment. Comments without
+    // stored data are dropped. Returns 1 on success. The store is locked meanwhile, since concurrent saves would
+    // otherwise drop each other's entries.
+    public static int update(String initDirPathString, Collection<String> commentIds, Map<String, String> storedData){
+
+        if(commentIds.isEmpty()){
+            return 1;
+        }
+
+        StoreLock storeLock = StoreLock.get(initDirPathString);
+
+        try(StoreLock.Held held = storeLock == null ? null : storeLock.lockStore()){
+            return held == null ? -1 : index(initDirPathString, commentIds, storedData);
+        }
+
+    }
+
+    private static int index(String initDirPathString, Collection<String> commentIds, Map<String, String> storedData){
+
+        // term -> anchor id -> positions, of the touched comments only
+        TreeMap<String, TreeMap<String, int[]>> touchedPostings = new TreeMap<String, TreeMap<String, int[]>>();
+        TreeMap<String, Integer> anchorLengths = new TreeMap<String, Integer>();
+        SearchIndex currentIndex = open(initDirPathString);
+        HashSet<String> touchedIds = new HashSet<String>(commentIds);
+
+        for(String commentId : touchedIds){
+
+            String commentData = storedData.get(commentId);
+
+            if(commentData == null){
+                continue;
+            }
+
+            List<String> terms = tokenize(commentData);
+            HashMap<String, List<Integer>> termPositions = new HashMap<String, List<Integer>>();
+
+            for(int i = 0; i < terms.size(); i++){
+                termPositions.computeIfAbsent(terms.get(i), term -> new ArrayList<Integer>()).add(i);
+            }
+
+            for(Map.Entry<String, List<Integer>> entry : termPositions.entrySet()){
+                int[] positions = entry.getValue().stream().mapToInt(Integer::intValue).toArray();
+                touchedPostings.computeIfAbsent(entry.getKey(), term -> new TreeMap<String, int[]>()).put(commentId, positions);
+            }
+
+            anchorLengths.put(commentId, terms.size());
+
+        }
+
+        String[] currentIds = new String[currentIndex == null ? 0 : currentIndex.anchorCount];
+
+        for(int i = 0; i < currentIds.length; i++){
+            currentIds[i] = currentIndex.getAnchorId(i);
+            if(!touchedIds.contains(currentIds[i])){
+                anchorLengths.put(currentIds[i], currentIndex.getAnchorLength(i));
+            }
+        }
+
+        HashMap<String, Integer> anchorNumbers = new HashMap<String, Integer>();
+
+        for(String commentId : anchorLengths.keySet()){
+            anchorNumbers.put(commentId, anchorNumbers.size());
+        }
+
+        // anchor numbers of the current index in the new one, or -1 for touched comments, whose postings are replaced
+        int[] renumbered = new int[currentIds.length];
+
+        for(int i = 0; i < currentIds.length; i++){
+            renumbered[i] = touchedIds.contains(currentIds[i]) ? -1 : anchorNumbers.get(currentIds[i]);
+        }
+
+        return write(getIndexPathString(initDirPathString), currentIndex, renumbered, touchedPostings, anchorNumbers, anchorLengths);
+
+    }
+
+    /*
+
+        Returns the comments containing any of the query terms, best match first. Each term contributes its tf-idf
+        weight, and query terms found next to each other, in order, add a bonus for the phrase.
+
+     */
+    public List<Result> search(String query){
+
+        List<String> queryTerms = tokenize(query);
+        HashMap<Integer, Double> scores = new HashMap<Integer, Double>();
+        HashMap<Integer, Set<Integer>> previousPositions = new HashMap<Integer, Set<Integer>>();
+
+        for(String queryTerm : queryTerms){
+
+            HashMap<Integer, Set<Integer>> currentPositions = new HashMap<Integer, Set<Integer>>();
+            long entryPosition = findTerm(queryTerm);
+
+            if(entryPosition != -1){
+
+                int termLength = Short.toUnsignedInt(buffer.getShort((int) entryPosition));
+                int postingsPosition = (int) buffer.getLong((int) entryPosition + 2 + termLength);
+                int documentFrequency = buffer.getInt((int) entryPosition + 10 + termLength);
+                double idf = Math.log(1 + (double) anchorCount / documentFrequency);
+                int[] cursor = {postingsPosition};
+                int anchorNumber = 0;
+
+                for(int i = 0; i < documentFrequency; i++){
+
+                    anchorNumber += readVarInt(cursor);
+                    int frequency = readVarInt(cursor);
+                    Set<Integer> positions = new HashSet<Integer>();
+                    Set<Integer> previous = previousPositions.get(anchorNumber);
+                    int position = 0;
+                    int adjacentCount = 0;
+
+                    for(int j = 0; j < frequency; j++){
+                        position += readVarInt(cursor);
+                        positions.add(position);
+                        if(previous != null && previous.contains(position - 1)){
+                            adjacentCount++;
+                        }
+                    }
+
+                    double weight = (1 + Math.log(frequency)) * idf + adjacentCount * idf;
+                    scores.merge(anchorNumber, weight / Math.sqrt(getAnchorLength(anchorNumber) + 1), Double::sum);
+                    currentPositions.put(anchorNumber, positions);
+                }
+
+            }
+
+            previousPositions = currentPositions;
+
+        }
+
+        List<Result> results = new ArrayList<Result>(scores.size());
+
+        for(Map.Entry<Integer, Double> entry : scores.entrySet()){
+            results.add(new Result(getAnchorId(entry.getKey()), entry.getValue()));
+        }
+
+        results.sort((a, b) -> a.score != b.score ? Double.compare(b.score, a.score) : a.commentId.compareTo(b.commentId));
+        return results;
+
+    }
+
+    public static List<String> tokenize(String text){
+
+        List<String> terms = new ArrayList<String>();
+        StringBuilder term = new StringBuilder();
+
+        for(int i = 0; i <= text.length(); i++){
+
+            char current = i < text.length() ? text.charAt(i) : ' ';
+
+            if(Character.isLetterOrDigit(current)){
+                term.append(Character.toLowerCase(current));
+            }
+            else if(term.length() > 0){
+                terms.add(term.toString());
+                term.setLength(0);
+            }
+
+        }
+
+        return terms;
+
+    }
+
+    /*
+
+        Writes a new index, merging the postings of the current index with those of the touched comments term by term.
+        Postings carried over are copied as they are, apart from their anchor number, so the cost of an update is
+        about that of copying the file, rather than of loading every posting into memory. The postings of each term
+        are read and built up in byte arrays, and written in one go.
+
+     */
+    private static int write(String indexPathString, SearchIndex currentIndex, int[] renumbered, TreeMap<String, TreeMap<String, int[]>> touchedPostings,
+                             HashMap<String, Integer> anchorNumbers, TreeMap<String, Integer> anchorLengths){
+
+        Path indexPath = Path.of(indexPathString);
+        Path tempPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        ArrayList<String> terms = new ArrayList<String>();
+        ArrayList<Long> postingsPositions = new ArrayList<Long>();
+        ArrayList<Integer> documentFrequencies = new ArrayList<Integer>();
+        long position = HEADER_SIZE;
+
+        try(CountingOutputStream countingStream = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath), 64 * 1024));
+            DataOutputStream indexStream = new DataOutputStream(countingStream)){
+
+            indexStream.write(new byte[HEADER_SIZE]); // written once the table positions are known
+
+            int currentTermCount = currentIndex == null ? 0 : currentIndex.termCount;
+            int currentTermNumber = 0;
+            Iterator<Map.Entry<String, TreeMap<String, int[]>>> touchedTerms = touchedPostings.entrySet().iterator();
+            Map.Entry<String, TreeMap<String, int[]>> touchedTerm = touchedTerms.hasNext() ? touchedTerms.next() : null;
+            byte[] currentPostings = new byte[256];
+            PostingsBuffer termPostings = new PostingsBuffer();
+
+            while(currentTermNumber < currentTermCount || touchedTerm != null){
+
+                int entryPosition = currentTermNumber < currentTermCount ? currentIndex.getTermEntryPosition(currentTermNumber) : -1;
+                String currentTerm = entryPosition == -1 ? null : currentIndex.readString(entryPosition);
+                int comparison = currentTerm == null ? 1 : touchedTerm == null ? -1 : currentTerm.compareTo(touchedTerm.getKey());
+                String term = comparison <= 0 ? currentTerm : touchedTerm.getKey();
+                Iterator<Map.Entry<String, int[]>> touched = comparison >= 0 ? touchedTerm.getValue().entrySet().iterator() : Collections.emptyIterator();
+                Map.Entry<String, int[]> touchedEntry = touched.hasNext() ? touched.next() : null;
+                int previousAnchorNumber = 0;
+                int documentFrequency = 0;
+
+                termPostings.clear();
+
+                if(comparison <= 0){
+
+                    int currentFrequency = currentIndex.buffer.getInt(entryPosition + 10 + Short.toUnsignedInt(currentIndex.buffer.getShort(entryPosition)));
+                    int postingsStart = currentIndex.getPostingsPosition(currentTermNumber);
+                    int[] cursor = {0};
+                    int currentAnchorNumber = 0;
+
+                    // postings are written in term order, so a term's postings end where the next term's start
+                    int postingsEnd = currentTermNumber + 1 < currentTermCount ? currentIndex.getPostingsPosition(currentTermNumber + 1) : (int) currentIndex.anchorTablePosition;
+
+                    if(currentPostings.length < postingsEnd - postingsStart){
+                        currentPostings = new byte[postingsEnd - postingsStart];
+                    }
+
+                    currentIndex.buffer.get(postingsStart, currentPostings, 0, postingsEnd - postingsStart);
+
+                    for(int i = 0; i < currentFrequency; i++){
+
+                        currentAnchorNumber += readVarInt(currentPostings, cursor);
+                        int start = cursor[0];
+                        int frequency = readVarInt(currentPostings, cursor);
+
+                        for(int j = 0; j < frequency; j++){
+                            readVarInt(currentPostings, cursor);
+                        }
+
+                        int anchorNumber = renumbered[currentAnchorNumber];
+
+                        if(anchorNumber == -1){
+                            continue;
+                        }
+
+                        while(touchedEntry != null && anchorNumbers.get(touchedEntry.getKey()) < anchorNumber){
+                            previousAnchorNumber = termPostings.write(anchorNumbers.get(touchedEntry.getKey()), previousAnchorNumber, touchedEntry.getValue());
+                            documentFrequency++;
+                            touchedEntry = touched.hasNext() ? touched.next() : null;
+                        }
+
+                        // the term count and position deltas are unchanged, so only the anchor number is written anew
+                        termPostings.writeVarInt(anchorNumber - previousAnchorNumber);
+                        termPostings.write(currentPostings, start, cursor[0] - start);
+                        previousAnchorNumber = anchorNumber;
+                        documentFrequency++;
+                    }
+
+                    currentTermNumber++;
+
+                }
+
+                while(touchedEntry != null){
+                    previousAnchorNumber = termPostings.write(anchorNumbers.get(touchedEntry.getKey()), previousAnchorNumber, touchedEntry.getValue());
+                    documentFrequency++;
+                    touchedEntry = touched.hasNext() ? touched.next() : null;
+                }
+
+                if(comparison >= 0){
+                    touchedTerm = touchedTerms.hasNext() ? touchedTerms.next() : null;
+                }
+
+                // terms only found in touched comments which no longer contain them are dropped
+                if(documentFrequency > 0){
+                    terms.add(term);
+                    postingsPositions.add(countingStream.count);
+                    documentFrequencies.add(documentFrequency);
+                    indexStream.write(termPostings.bytes, 0, termPostings.length);
+                }
+
+            }
+
+            indexStream.flush();
+            long anchorTablePosition = countingStream.count;
+            position = anchorTablePosition + anchorLengths.size() * 8L;
+
+            for(String commentId : anchorLengths.keySet()){
+                indexStream.writeLong(position);
+                position += 6 + commentId.getBytes(StandardCharsets.UTF_8).length;
+            }
+
+            for(Map.Entry<String, Integer> entry : anchorLengths.entrySet()){
+                writeString(indexStream, entry.getKey());
+                indexStream.writeInt(entry.getValue());
+            }
+
+            long termTablePosition = position;
+            position = termTablePosition + terms.size() * 8L;
+
+            for(String term : terms){
+                indexStream.writeLong(position);
+                position += 14 + term.getBytes(StandardCharsets.UTF_8).length;
+            }
+
+            for(int i = 0; i < terms.size(); i++){
+                writeString(indexStream, terms.get(i));
+                indexStream.writeLong(postingsPositions.get(i));
+                indexStream.writeInt(documentFrequencies.get(i));
+            }
+
+            indexStream.flush();
+
+            if(position > Integer.MAX_VALUE){
+                throw new IOException("Search index is larger than 2GB");
+            }
+
+            try(FileChannel indexChannel = FileChannel.open(tempPath, StandardOpenOption.WRITE)){
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(INDEX_MAGIC).putInt(anchorLengths.size()).putInt(terms.size()).putLong(anchorTablePosition).putLong(termTablePosition);
+                indexChannel.write(header.flip(), 0);
+            }
+
+        } catch(IOException e){
+            System.out.println("Failed writing search index!");
+            System.out.println(e);
+            return -1;
+        }
+
+        try{
+            Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e){
+            System.out.println("Failed replacing search index!");
+            System.out.println(e);
+            return -1;
+        }
+
+        return 1;
+
+    }
+
+    // Postings of a single term, built up before they are written.
+    private static class PostingsBuffer {
+        byte[] bytes = new byte[4096];
+        int length = 0;
+
+        void clear(){
+            length = 0;
+        }
+
+        void writeVarInt(int value){
+            ensureCapacity(5);
+            while((value & ~0x7F) != 0){
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void write(byte[] source, int offset, int count){
+            ensureCapacity(count);
+            System.arraycopy(source, offset, bytes, length, count);
+            length += count;
+        }
+
+        // Writes the postings of one anchor, returning its anchor number as the base of the next delta.
+        int write(int anchorNumber, int previousAnchorNumber, int[] positions){
+
+            int previousPosition = 0;
+
+            writeVarInt(anchorNumber - previousAnchorNumber);
+            writeVarInt(positions.length);
+
+            for(int position : positions){
+                writeVarInt(position - previousPosition);
+                previousPosition = position;
+            }
+
+            return anchorNumber;
+
+        }
+
+        private void ensureCapacity(int count){
+            if(length + count > bytes.length){
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+            }
+        }
+    }
+
+    // Returns the position of a term's entry, or -1 if it is not in the index.
+    private long findTerm(String term){
+
+        int low = 0;
+        int high = termCount - 1;
+
+        while(low <= high){
+
+            int middle = (low + high) >>> 1;
+            int entryPosition = getTermEntryPosition(middle);
+            int comparison = readString(entryPosition).compareTo(term);
+
+            if(comparison == 0){
+                return entryPosition;
+            }
+            else if(comparison < 0){
+                low = middle + 1;
+            }
+            else{
+                high = middle - 1;
+            }
+
+        }
+
+        return -1;
+
+    }
+
+    private int getTermEntryPosition(int termNumber){
+        return (int) buffer.getLong((int) termTablePosition + termNumber * 8);
+    }
+
+    private int getPostingsPosition(int termNumber){
+        int entryPosition = getTermEntryPosition(termNumber);
+        return (int) buffer.getLong(entryPosition + 2 + Short.toUnsignedInt(buffer.getShort(entryPosition)));
+    }
+
+    private String getAnchorId(int anchorNumber){
+        return readString((int) buffer.getLong((int) anchorTablePosition + anchorNumber * 8));
+    }
+
+    private int getAnchorLength(int anchorNumber){
+        int entryPosition = (int) buffer.getLong((int) anchorTablePosition + anchorNumber * 8);
+        return buffer.getInt(entryPosition + 2 + Short.toUnsignedInt(buffer.getShort(entryPosition)));
+    }
+
+    private String readString(int position){
+        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort(position))];
+        buffer.get(position + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int readVarInt(int[] cursor){
+
+        int value = 0;
+        int shift = 0;
+        byte current;
+
+        do{
+            current = buffer.get(cursor[0]++);
+            value |= (current & 0x7F) << shift;
+            shift += 7;
+        } while((current & 0x80) != 0);
+
+        return value;
+
+    }
+
+    private static int readVarInt(byte[] bytes, int[] cursor){
+
+        int value = 0;
+        int shift = 0;
+        byte current;
+
+        do{
+            current = bytes[cursor[0]++];
+            value |= (current & 0x7F) << shift;
+            shift += 7;
+        } while((current & 0x80) != 0);
+
+        return value;
+
+    }
+
+    private static void writeString(DataOutputStream stream, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        stream.writeShort(bytes.length);
+        stream.write(bytes);
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out){
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+}
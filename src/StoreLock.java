@@ -0,0 +1,169 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+
+    Coordinates writes to the comment store of an init directory between processes, e.g. several "anchor save" jobs
+    run in parallel against the same .anchor directory, and between threads of the same process.
+
+    Locks are taken on single byte regions of .anchor\store.lock:
+        byte 0                  the store lock, held while shared files such as the id index are rewritten
+        bytes 1 to STRIPES      stripe locks, each held while the data of the comment ids hashing to it is written
+
+    so saves storing different anchors write their comment data concurrently, and only serialize for the short
+    rewrite of the index, while saves storing the same anchors wait for each other. Stripes are always locked in
+    ascending order, and before the store lock, so that saves cannot deadlock.
+
+    The operating system releases a process' file locks when any channel of the process to the lock file is closed,
+    so a single StoreLock is kept open per init directory for the life of the process, and every region lock is
+    paired with a ReentrantLock serializing the threads of the process, which file locks do not.
+
+ */
+class StoreLock {
+
+    static final int STRIPES = 256;
+
+    private static final ConcurrentHashMap<String, StoreLock> storeLocks = new ConcurrentHashMap<String, StoreLock>();
+
+    // Releases the locks it holds when closed, in the reverse order they were taken.
+    static class Held implements AutoCloseable {
+
+        private final ArrayDeque<Runnable> releases = new ArrayDeque<Runnable>();
+
+        public void close(){
+            while(!releases.isEmpty()){
+                releases.pop().run();
+            }
+        }
+
+    }
+
+    private final FileChannel lockChannel;
+    private final ReentrantLock[] regionLocks = new ReentrantLock[STRIPES + 1];
+
+    private StoreLock(FileChannel lockChannel){
+
+        this.lockChannel = lockChannel;
+
+        for(int i = 0; i < regionLocks.length; i++){
+            regionLocks[i] = new ReentrantLock();
+        }
+
+    }
+
+    // Returns the lock of the init directory, or null if its lock file cannot be opened.
+    static StoreLock get(String initDirPathString){
+
+        StoreLock storeLock = storeLocks.get(initDirPathString);
+
+        if(storeLock != null){
+            return storeLock;
+        }
+
+        synchronized(storeLocks){
+
+            storeLock = storeLocks.get(initDirPathString);
+
+            if(storeLock == null){
+                try{
+                    storeLock = new StoreLock(FileChannel.open(Path.of(initDirPathString + "\\store.lock"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+                    storeLocks.put(initDirPathString, storeLock);
+                } catch(IOException e){
+                    System.out.println("Failed opening store lock file!");
+                    System.out.println(e);
+                    return null;
+                }
+            }
+
+            return storeLock;
+
+        }
+
+    }
+
+    // Locks the whole store. Returns null on failure.
+    public Held lockStore(){
+
+        Held held = new Held();
+
+        if(lockRegion(0, held) == -1){
+            held.close();
+            return null;
+        }
+
+        return held;
+
+    }
+
+    // Locks the stripes of the given comment ids. Returns null on failure.
+    public Held lockStripes(Collection<String> commentIds){
+
+        TreeSet<Integer> stripes = new TreeSet<Integer>();
+        Held held = new Held();
+
+        for(String commentId : commentIds){
+            stripes.add(getStripe(commentId));
+
+            if(stripes.size() == STRIPES){
+                break;
+            }
+        }
+
+        for(int stripe : stripes){
+            if(lockRegion(1 + stripe, held) == -1){
+                held.close();
+                return null;
+            }
+        }
+
+        return held;
+
+    }
+
+    static int getStripe(String commentId){
+        return Math.floorMod(commentId.hashCode(), STRIPES);
+    }
+
+    private int lockRegion(int region, Held held){
+
+        ReentrantLock regionLock = regionLocks[region];
+
+        regionLock.lock();
+
+        if(regionLock.getHoldCount() > 1){ // already held by this thread, and so by this process
+            held.releases.push(regionLock::unlock);
+            return 1;
+        }
+
+        FileLock fileLock;
+
+        try{
+            fileLock = lockChannel.lock(region, 1, false);
+        } catch(IOException e){
+            regionLock.unlock();
+            System.out.println("Failed locking comment store!");
+            System.out.println(e);
+            return -1;
+        }
+
+        held.releases.push(() -> {
+            try{
+                fileLock.release();
+            } catch(IOException e){
+                System.out.println("Failed unlocking comment store!");
+            } finally{
+                regionLock.unlock();
+            }
+        });
+
+        return 1;
+
+    }
+
+}
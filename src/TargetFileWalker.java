@@ -0,0 +1,488 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+
+    Finds the target files under a directory. Each directory is read exactly once, and subdirectories are walked in
+    parallel on a fork join pool. Entries within a directory are visited in name order, so the result order is the
+    same from one run to the next.
+
+    Target files are matched against one or more extensions or globs, e.g. "targetExtension=.java, .kt, *.gradle".
+    Excluded paths use .gitignore style patterns, e.g. "exclude=.git, node_modules, build/, /docs/generated, *.min.js":
+        a pattern without a slash matches a file or directory name at any depth
+        a pattern with a leading or inner slash matches a path relative to the target directory
+        a pattern with a trailing slash only matches directories
+    When no exclude patterns are configured, DEFAULT_EXCLUDES are used. The .anchor directory is always excluded.
+
+    Symbolic links to files are followed, so a linked target file is saved through its link. Symbolic links to
+    directories are not followed, which keeps a link back up the tree from walking it forever.
+
+ */
+class TargetFileWalker {
+
+    static final String DEFAULT_EXCLUDES = ".git/, node_modules/, build/";
+
+    private static class ExcludePattern {
+        final PathMatcher matcher;
+        final boolean isRelativePath;
+        final boolean isDirectoryOnly;
+
+        ExcludePattern(PathMatcher matcher, boolean isRelativePath, boolean isDirectoryOnly){
+            this.matcher = matcher;
+            this.isRelativePath = isRelativePath;
+            this.isDirectoryOnly = isDirectoryOnly;
+        }
+    }
+
+    private final Path rootPath;
+    private final PathMatcher targetMatcher;
+    private final List<ExcludePattern> excludePatterns = new ArrayList<ExcludePattern>();
+
+    TargetFileWalker(String rootPathString, String targetExtensions, String excludes){
+
+        FileSystem fileSystem = FileSystems.getDefault();
+        List<PathMatcher> extensionMatchers = new ArrayList<PathMatcher>();
+
+        this.rootPath = Paths.get(rootPathString).toAbsolutePath();
+
+        for(String extension : splitList(targetExtensions)){
+            extensionMatchers.add(fileSystem.getPathMatcher("glob:" + (isGlob(extension) ? extension : "*" + extension)));
+        }
+
+        this.targetMatcher = fileName -> {
+            for(PathMatcher extensionMatcher : extensionMatchers){
+                if(extensionMatcher.matches(fileName)){
+                    return true;
+                }
+            }
+            return false;
+        };
+
+        for(String exclude : splitList(excludes == null ? DEFAULT_EXCLUDES : excludes)){
+
+            boolean isDirectoryOnly = exclude.endsWith("/");
+            String pattern = isDirectoryOnly ? exclude.substring(0, exclude.length() - 1) : exclude;
+            boolean isRelativePath = pattern.contains("/");
+
+            if(pattern.startsWith("/")){
+                pattern = pattern.substring(1);
+            }
+
+            if(!pattern.isEmpty()){
+                excludePatterns.add(new ExcludePattern(fileSystem.getPathMatcher("glob:" + pattern), isRelativePath, isDirectoryOnly));
+            }
+
+        }
+
+        excludePatterns.add(new ExcludePattern(fileSystem.getPathMatcher("glob:.anchor"), false, true));
+
+    }
+
+    // Returns the absolute paths of all target files, or null if the root directory cannot be read.
+    public List<String> walk(int parallelism){
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try{
+            return pool.invoke(new DirectoryTask(rootPath));
+        } catch(UncheckedIOException e){
+            System.out.println("Failed reading target directory!");
+            System.out.println(e.getCause());
+            return null;
+        } finally{
+            pool.shutdown();
+        }
+
+    }
+
+    /*
+
+        Returns the absolute paths of the target files among the given paths, which are files, directories whose
+        target files are all selected, or globs such as "src/**.java". Relative paths and globs are resolved against
+        basePath. A glob is only walked from the directory before its first wildcard, so selecting a few files costs
+        about as much as the files themselves, whatever the size of the target directory.
+
+        Paths outside the target directory, under an excluded directory, or no longer existing are skipped. Each
+        file is selected once, in the order the paths are given. Returns null if the target directory cannot be read.
+
+     */
+    public List<String> select(List<String> paths, Path basePath, int parallelism){
+
+        Path normalizedRootPath = rootPath.normalize();
+        LinkedHashSet<String> result = new LinkedHashSet<String>();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try{
+
+            for(String pathString : paths){
+
+                if(isGlob(pathString)){
+                    result.addAll(selectGlob(pathString, basePath, normalizedRootPath, pool));
+                    continue;
+                }
+
+                Path path = basePath.resolve(pathString).normalize();
+
+                if(!Files.exists(path, LinkOption.NOFOLLOW_LINKS)){
+                    System.out.println("Skipping path which does not exist : " + pathString);
+                }
+                else if(!path.startsWith(normalizedRootPath)){
+                    System.out.println("Skipping path which is not in the target directory : " + pathString);
+                }
+                else if(isExcludedFromRoot(path, normalizedRootPath, Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))){
+                    System.out.println("Skipping excluded path : " + pathString);
+                }
+                else if(Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)){
+                    result.addAll(pool.invoke(new DirectoryTask(path)));
+                }
+                else if(Files.isRegularFile(path) && targetMatcher.matches(path.getFileName())){
+                    result.add(path.toString());
+                }
+
+            }
+
+        } catch(UncheckedIOException e){
+            System.out.println("Failed reading target directory!");
+            System.out.println(e.getCause());
+            return null;
+        } finally{
+            pool.shutdown();
+        }
+
+        return new ArrayList<String>(result);
+
+    }
+
+    /*
+
+        Returns the target files among the given paths as select does, for several walkers whose target directories
+        are saved together. Each path is selected by the walker of the innermost target directory it is in, and each
+        glob by every walker whose target directory it reaches into. Files are selected once, in the order of the
+        walkers. Returns null if a target directory cannot be read.
+
+     */
+    static List<String> select(List<TargetFileWalker> walkers, List<String> paths, Path basePath, int parallelism){
+
+        LinkedHashMap<TargetFileWalker, List<String>> walkerPaths = new LinkedHashMap<TargetFileWalker, List<String>>();
+        LinkedHashSet<String> result = new LinkedHashSet<String>();
+
+        for(TargetFileWalker walker : walkers){
+            walkerPaths.put(walker, new ArrayList<String>());
+        }
+
+        for(String pathString : paths){
+
+            TargetFileWalker innermostWalker = null;
+            boolean isSelected = false;
+
+            for(TargetFileWalker walker : walkers){
+
+                Path normalizedRootPath = walker.rootPath.normalize();
+
+                if(isGlob(pathString)){
+                    Path startPath = getGlobStartPath(pathString, basePath);
+                    if(startPath.startsWith(normalizedRootPath) || normalizedRootPath.startsWith(startPath)){
+                        walkerPaths.get(walker).add(pathString);
+                        isSelected = true;
+                    }
+                }
+                else if(basePath.resolve(pathString).normalize().startsWith(normalizedRootPath)
+                        && (innermostWalker == null || normalizedRootPath.startsWith(innermostWalker.rootPath.normalize()))){
+                    innermostWalker = walker;
+                }
+
+            }
+
+            if(innermostWalker != null){
+                walkerPaths.get(innermostWalker).add(pathString);
+            }
+            else if(!isSelected){
+                walkerPaths.get(walkers.get(0)).add(pathString); // outside every target directory, which it reports
+            }
+
+        }
+
+        for(Map.Entry<TargetFileWalker, List<String>> entry : walkerPaths.entrySet()){
+
+            if(entry.getValue().isEmpty()){
+                continue;
+            }
+
+            List<String> targetFiles = entry.getKey().select(entry.getValue(), basePath, parallelism);
+
+            if(targetFiles == null){
+                return null;
+            }
+
+            result.addAll(targetFiles);
+
+        }
+
+        return new ArrayList<String>(result);
+
+    }
+
+    // Returns the absolute paths of the target files of every walker, each file once, or null if a target directory
+    // cannot be read.
+    static List<String> walk(List<TargetFileWalker> walkers, int parallelism){
+
+        if(walkers.size() == 1){
+            return walkers.get(0).walk(parallelism);
+        }
+
+        LinkedHashSet<String> result = new LinkedHashSet<String>();
+
+        for(TargetFileWalker walker : walkers){
+
+            List<String> targetFiles = walker.walk(parallelism);
+
+            if(targetFiles == null){
+                return null;
+            }
+
+            result.addAll(targetFiles);
+
+        }
+
+        return new ArrayList<String>(result);
+
+    }
+
+    // Walks the target files under the directory before the first wildcard of the glob, keeping those it matches.
+    private List<String> selectGlob(String glob, Path basePath, Path normalizedRootPath, ForkJoinPool pool){
+
+        String[] segments = glob.replace('\\', '/').split("/");
+        int prefixLength = getGlobPrefixLength(segments);
+        Path startPath = getGlobStartPath(glob, basePath);
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + String.join("/", Arrays.asList(segments).subList(prefixLength, segments.length)));
+        Path walkPath;
+
+        if(startPath.startsWith(normalizedRootPath)){
+            walkPath = startPath;
+        }
+        else if(normalizedRootPath.startsWith(startPath)){
+            walkPath = normalizedRootPath; // a glob above the target directory only selects files within it
+        }
+        else{
+            System.out.println("Skipping glob which is not in the target directory : " + glob);
+            return new ArrayList<String>();
+        }
+
+        if(!Files.isDirectory(walkPath) || isExcludedFromRoot(walkPath, normalizedRootPath, true)){
+            return new ArrayList<String>();
+        }
+
+        List<String> result = new ArrayList<String>();
+
+        for(String filePath : pool.invoke(new DirectoryTask(walkPath))){
+            if(matcher.matches(startPath.relativize(Paths.get(filePath)))){
+                result.add(filePath);
+            }
+        }
+
+        return result;
+
+    }
+
+    // Returns the directory before the first wildcard of the glob, resolved against basePath.
+    private static Path getGlobStartPath(String glob, Path basePath){
+
+        String[] segments = glob.replace('\\', '/').split("/");
+
+        return basePath.resolve(String.join("/", Arrays.asList(segments).subList(0, getGlobPrefixLength(segments)))).normalize();
+
+    }
+
+    // Returns the number of leading segments of a glob without wildcards, leaving at least its last segment.
+    private static int getGlobPrefixLength(String[] segments){
+
+        int prefixLength = 0;
+
+        while(prefixLength < segments.length - 1 && !isGlob(segments[prefixLength])){
+            prefixLength++;
+        }
+
+        return prefixLength;
+
+    }
+
+    // Returns true if the path, or any directory between it and the target directory, is excluded. The path must be
+    // in the target directory.
+    private boolean isExcludedFromRoot(Path path, Path normalizedRootPath, boolean isDirectory){
+
+        if(path.equals(normalizedRootPath)){
+            return false;
+        }
+
+        if(isExcluded(path, isDirectory)){
+            return true;
+        }
+
+        for(Path dirPath = path.getParent(); dirPath != null && !dirPath.equals(normalizedRootPath); dirPath = dirPath.getParent()){
+            if(isExcluded(dirPath, true)){
+                return true;
+            }
+        }
+
+        return false;
+
+    }
+
+    public Path getRootPath(){
+        return rootPath;
+    }
+
+    // Returns true if the file matches the target extensions and neither it nor any directory between it and the
+    // target directory is excluded. The file must be in the target directory.
+    public boolean isTargetFile(Path filePath){
+        return targetMatcher.matches(filePath.getFileName()) && !isExcludedFromRoot(filePath.normalize(), rootPath.normalize(), false);
+    }
+
+    // Returns every directory under, and including, startPath which is not excluded, or none if startPath itself, or
+    // a directory between it and the target directory, is excluded. startPath must be in the target directory.
+    public List<Path> getDirectories(Path startPath) throws IOException {
+
+        List<Path> result = new ArrayList<Path>();
+
+        if(isExcludedFromRoot(startPath.normalize(), rootPath.normalize(), true)){
+            return result;
+        }
+
+        Files.walkFileTree(startPath, new SimpleFileVisitor<Path>(){
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes){
+                if(!dir.equals(startPath) && isExcluded(dir, true)){
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                result.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e){
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return result;
+
+    }
+
+    @SuppressWarnings("serial") // tasks are never serialized
+    private class DirectoryTask extends RecursiveTask<List<String>> {
+
+        private final Path dirPath;
+
+        DirectoryTask(Path dirPath){
+            this.dirPath = dirPath;
+        }
+
+        @Override
+        protected List<String> compute(){
+
+            TreeMap<String, Path> files = new TreeMap<String, Path>();
+            TreeMap<String, Path> dirs = new TreeMap<String, Path>();
+
+            try(DirectoryStream<Path> entries = Files.newDirectoryStream(dirPath)){
+
+                for(Path entry : entries){
+
+                    // attributes are usually cached from the directory read, so this does not cost another syscall
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    String name = entry.getFileName().toString();
+
+                    if(isExcluded(entry, attributes.isDirectory())){
+                        continue;
+                    }
+
+                    if(attributes.isDirectory()){
+                        dirs.put(name, entry);
+                    }
+                    else if(targetMatcher.matches(entry.getFileName()) && (!attributes.isSymbolicLink() || Files.isRegularFile(entry))){
+                        files.put(name, entry);
+                    }
+
+                }
+
+            } catch(IOException e){
+                if(dirPath.equals(rootPath)){
+                    throw new UncheckedIOException(e);
+                }
+                System.out.println(e); // unreadable subdirectories are skipped
+                return new ArrayList<String>();
+            }
+
+            List<DirectoryTask> subtasks = new ArrayList<DirectoryTask>(dirs.size());
+            List<String> result = new ArrayList<String>(files.size());
+
+            for(Path dir : dirs.values()){
+                DirectoryTask subtask = new DirectoryTask(dir);
+                subtask.fork();
+                subtasks.add(subtask);
+            }
+
+            for(Path file : files.values()){
+                result.add(file.toString());
+            }
+
+            for(DirectoryTask subtask : subtasks){
+                result.addAll(subtask.join());
+            }
+
+            return result;
+
+        }
+
+    }
+
+    private boolean isExcluded(Path path, boolean isDirectory){
+
+        Path relativePath = null;
+
+        for(ExcludePattern excludePattern : excludePatterns){
+
+            if(excludePattern.isDirectoryOnly && !isDirectory){
+                continue;
+            }
+
+            if(excludePattern.isRelativePath){
+                if(relativePath == null){
+                    relativePath = rootPath.relativize(path);
+                }
+                if(excludePattern.matcher.matches(relativePath)){
+                    return true;
+                }
+            }
+            else if(excludePattern.matcher.matches(path.getFileName())){
+                return true;
+            }
+
+        }
+
+        return false;
+
+    }
+
+    private static boolean isGlob(String pattern){
+        return pattern.contains("*") || pattern.contains("?") || pattern.contains("[") || pattern.contains("{");
+    }
+
+    private static List<String> splitList(String list){
+
+        List<String> result = new ArrayList<String>();
+
+        for(String item : list.split(",")){
+            if(!item.trim().isEmpty()){
+                result.add(item.trim());
+            }
+        }
+
+        return result;
+
+    }
+
+}
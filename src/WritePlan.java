@@ -0,0 +1,120 @@
+import java.util.*;
+
+/*
+
+    The storage operations of a save, with every anchor marker's option coalesced into a single operation per comment
+    id. Markers are added in the order they are read, file by file in target file order, and each is folded into the
+    operation already planned for its id:
+        a marker without an option, or -a       appends its data
+        -u                                      replaces the data, or deletes it if the marker has no comment
+        -r                                      deletes the data
+
+    An append to a planned append or replace extends its data, and an append after a delete replaces the data, since
+    the stored data is gone by then. A replace or delete supersedes whatever was planned before it. Markers which have
+    neither an option nor a comment plan nothing.
+
+ */
+class WritePlan {
+
+    enum Kind { APPEND, REPLACE, DELETE }
+
+    static class Op {
+        final Kind kind;
+        final String data;
+
+        Op(Kind kind, String data){
+            this.kind = kind;
+            this.data = data;
+        }
+    }
+
+    private final LinkedHashMap<String, Op> ops = new LinkedHashMap<String, Op>();
+
+    // Builds a plan from comment data and options by id, as if every id came from a single marker.
+    static WritePlan of(Map<String, String> anchorData, Map<String, String> anchorOptions){
+
+        WritePlan plan = new WritePlan();
+
+        for(Map.Entry<String, String> entry : anchorOptions.entrySet()){
+            if(!anchorData.containsKey(entry.getKey())){
+                plan.add(entry.getKey(), entry.getValue(), null);
+            }
+        }
+
+        for(Map.Entry<String, String> entry : anchorData.entrySet()){
+            plan.add(entry.getKey(), anchorOptions.getOrDefault(entry.getKey(), ""), entry.getValue());
+        }
+
+        return plan;
+
+    }
+
+    /*
+
+        Adds the operation of a single anchor marker, given its option and its comment data, or null if the marker
+        has no comment. Returns false, planning nothing, if the option is not one of -u, -a or -r.
+
+     */
+    public boolean add(String commentId, String option, String data){
+
+        switch(option.trim()){
+            case "":
+            case "-a":
+                if(data != null){
+                    add(commentId, new Op(Kind.APPEND, data));
+                }
+                return true;
+            case "-u":
+                add(commentId, data == null ? new Op(Kind.DELETE, null) : new Op(Kind.REPLACE, data));
+                return true;
+            case "-r":
+                add(commentId, new Op(Kind.DELETE, null));
+                return true;
+            default:
+                return false;
+        }
+
+    }
+
+    // Folds an operation into the one planned for the comment.
+    public void add(String commentId, Op op){
+
+        Op planned = ops.get(commentId);
+
+        if(planned == null || op.kind != Kind.APPEND){
+            ops.put(commentId, op);
+        }
+        else if(planned.kind == Kind.DELETE){
+            ops.put(commentId, new Op(Kind.REPLACE, op.data));
+        }
+        else{
+            ops.put(commentId, new Op(planned.kind, planned.data + op.data));
+        }
+
+    }
+
+    // Folds every operation of another plan into this one, in the order they were planned.
+    public void addAll(WritePlan plan){
+        for(Map.Entry<String, Op> entry : plan.ops.entrySet()){
+            add(entry.getKey(), entry.getValue());
+        }
+    }
+
+    // Returns the planned operations by comment id, in the order the ids were first planned.
+    public Map<String, Op> getOps(){
+        return Collections.unmodifiableMap(ops);
+    }
+
+    public Set<String> getCommentIds(){
+        return Collections.unmodifiableSet(ops.keySet());
+    }
+
+    public boolean isEmpty(){
+        return ops.isEmpty();
+    }
+
+    public void clear(){
+        ops.clear();
+    }
+
+}
@@ -0,0 +1,390 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Stream;
+
+/*
+
+    Checks of the write plan, storage, index, archive and history code, which the command line round trips rely on.
+    They run without a test framework, from the repository root:
+        javac -d out src/*.java test/*.java && java -cp out AnchorTests
+
+    Every check gets a temporary directory of its own, holding the init directory. Failed checks are printed, and
+    the exit status is the number of failures.
+
+ */
+public class AnchorTests {
+
+    private static int checkCount = 0;
+    private static int failureCount = 0;
+
+    public static void main(String[] args) throws IOException {
+
+        checkWritePlan();
+        checkPackedStoreTornRecords();
+        checkIdIndex();
+        checkArchive();
+        checkHistory();
+
+        System.out.println((checkCount - failureCount) + " of " + checkCount + " checks passed.");
+        System.exit(failureCount);
+
+    }
+
+    // Every option folded into the operation already planned for an id, as described in WritePlan.
+    private static void checkWritePlan(){
+
+        WritePlan plan = new WritePlan();
+
+        plan.add("[Anchor.Append]", "", "a");
+        plan.add("[Anchor.Append]", "-a", "b");
+        plan.add("[Anchor.Replace]", "-u", "old");
+        plan.add("[Anchor.Replace]", "-a", " more");
+        plan.add("[Anchor.Revived]", "-r", null);
+        plan.add("[Anchor.Revived]", "", "new");
+        plan.add("[Anchor.Superseded]", "-a", "a");
+        plan.add("[Anchor.Superseded]", "-u", "b");
+        plan.add("[Anchor.Removed]", "-a", "a");
+        plan.add("[Anchor.Removed]", "-r", null);
+        plan.add("[Anchor.Emptied]", "-u", null);
+        plan.add("[Anchor.Nothing]", "", null);
+
+        checkOp(plan, "[Anchor.Append]", WritePlan.Kind.APPEND, "ab");
+        checkOp(plan, "[Anchor.Replace]", WritePlan.Kind.REPLACE, "old more");
+        checkOp(plan, "[Anchor.Revived]", WritePlan.Kind.REPLACE, "new");
+        checkOp(plan, "[Anchor.Superseded]", WritePlan.Kind.REPLACE, "b");
+        checkOp(plan, "[Anchor.Removed]", WritePlan.Kind.DELETE, null);
+        checkOp(plan, "[Anchor.Emptied]", WritePlan.Kind.DELETE, null);
+        check(!plan.getOps().containsKey("[Anchor.Nothing]"), "a marker without option or comment plans nothing");
+        check(!plan.add("[Anchor.Invalid]", "-x", "data") && !plan.getOps().containsKey("[Anchor.Invalid]"), "an invalid option plans nothing");
+        checkEquals(List.of("[Anchor.Append]", "[Anchor.Replace]", "[Anchor.Revived]", "[Anchor.Superseded]", "[Anchor.Removed]", "[Anchor.Emptied]"),
+                new ArrayList<String>(plan.getCommentIds()), "ids are planned in the order they were first added");
+
+        // plans of separate files merge as if their markers were read one after the other
+        WritePlan first = new WritePlan();
+        WritePlan second = new WritePlan();
+        WritePlan merged = new WritePlan();
+
+        first.add("[Anchor.Merged]", "-u", "first");
+        second.add("[Anchor.Merged]", "-a", " second");
+        second.add("[Anchor.Deleted]", "-r", null);
+        merged.addAll(first);
+        merged.addAll(second);
+
+        checkOp(merged, "[Anchor.Merged]", WritePlan.Kind.REPLACE, "first second");
+        checkOp(merged, "[Anchor.Deleted]", WritePlan.Kind.DELETE, null);
+
+    }
+
+    // A save interrupted within a record leaves it partially written at the end of the log, which a store reloading the
+    // log without its index must stop before, and which the next save must overwrite.
+    private static void checkPackedStoreTornRecords() throws IOException {
+
+        Path tempDirPath = Files.createTempDirectory("anchor-test");
+
+        try{
+
+            String initDirPathString = getInitDirPathString(tempDirPath);
+            Path logPath = Path.of(initDirPathString + "\\store.log");
+            Path indexPath = Path.of(initDirPathString + "\\index.bin");
+
+            check(openPacked(initDirPathString).write(getPlan("", "[Anchor.A]", "alpha", "[Anchor.B]", "beta")) == 1, "packed store writes a plan");
+            long committedSize = Files.size(logPath);
+            check(openPacked(initDirPathString).write(getPlan("-a", "[Anchor.A]", " appended")) == 1, "packed store appends to a comment");
+            long appendedSize = Files.size(logPath);
+
+            checkEquals("alpha appended", openPacked(initDirPathString).read("[Anchor.A]"), "packed store reads an appended comment");
+
+            // cut off within the body of the appended record, then within its id, which starts 11 bytes into the record
+            for(long tornSize : new long[]{appendedSize - 2, committedSize + 18}){
+
+                truncate(logPath, tornSize);
+                Files.deleteIfExists(indexPath);
+
+                CommentStore store = openPacked(initDirPathString);
+
+                checkEquals("alpha", store.read("[Anchor.A]"), "packed store drops a record torn at " + (tornSize - committedSize) + " bytes");
+                checkEquals("beta", store.read("[Anchor.B]"), "packed store keeps the records before a torn one");
+                checkEquals(List.of("[Anchor.A]", "[Anchor.B]"), store.getCommentIds("[Anchor."), "packed store lists the ids before a torn record");
+
+            }
+
+            check(openPacked(initDirPathString).write(getPlan("-a", "[Anchor.A]", " again")) == 1, "packed store appends after a torn record");
+            check(isLastRecordAt(logPath, committedSize), "the next save overwrites the torn record");
+            checkEquals("alpha again", openPacked(initDirPathString).read("[Anchor.A]"), "packed store reads data appended after a torn record");
+
+        } finally{
+            deleteRecursively(tempDirPath);
+        }
+
+    }
+
+    private static void checkIdIndex() throws IOException {
+
+        Path tempDirPath = Files.createTempDirectory("anchor-test");
+
+        try{
+
+            String indexPathString = getInitDirPathString(tempDirPath) + "\\index.bin";
+            TreeMap<String, IdIndex.Entry> entries = new TreeMap<String, IdIndex.Entry>(IdIndex.ID_ORDER);
+
+            for(String commentId : List.of("[Anchor.Same]", "[Anchor.Same2]", "[Anchor.Same.X]", "[Anchor.Other]", "[Anchor.\u00dcn\u00efc\u00f6d\u00e9]")){
+                entries.put(commentId, new IdIndex.Entry(commentId, commentId.length(), commentId.hashCode()));
+            }
+
+            // enough entries for hash collisions within the slots
+            for(int i = 0; i < 2000; i++){
+                String commentId = "[Anchor.Generated." + i + "]";
+                entries.put(commentId, new IdIndex.Entry(commentId, i, (long) i << 32));
+            }
+
+            check(IdIndex.write(indexPathString, (byte) 't', entries, 123456789012L, 42) == 1, "id index is written");
+
+            IdIndex index = IdIndex.open(indexPathString, (byte) 't');
+
+            check(index != null, "id index is opened");
+
+            if(index == null){
+                return;
+            }
+
+            checkEquals(entries.size(), index.size(), "id index holds every entry");
+            checkEquals(123456789012L, index.getStoreSize(), "id index keeps the store size");
+            checkEquals(42L, index.getStoreDeadBytes(), "id index keeps the store dead bytes");
+
+            boolean isEveryEntryFound = true;
+
+            for(IdIndex.Entry entry : entries.values()){
+                IdIndex.Entry found = index.get(entry.commentId);
+                isEveryEntryFound &= found != null && found.offset == entry.offset && found.length == entry.length;
+            }
+
+            check(isEveryEntryFound, "id index looks up every entry");
+            check(index.get("[Anchor.Missing]") == null, "id index finds no missing entry");
+            checkEquals(List.of("[Anchor.Same]", "[Anchor.Same.X]", "[Anchor.Same2]"), getIds(index.getByPrefix("[Anchor.Same")), "id index returns a prefix in short id order");
+
+            Iterator<IdIndex.Entry> after = index.iterateAfter("[Anchor.Same]");
+
+            checkEquals("[Anchor.Same.X]", after.hasNext() ? after.next().commentId : null, "id index iterates after an id in short id order");
+            checkEquals(new ArrayList<String>(entries.keySet()), new ArrayList<String>(index.getAll().keySet()), "id index returns every entry in order");
+            check(IdIndex.open(indexPathString, (byte) 'x') == null, "id index of another store kind is not opened");
+
+        } finally{
+            deleteRecursively(tempDirPath);
+        }
+
+    }
+
+    // Exports every engine's store and imports it into every other engine's. The files engine names data files after
+    // their ids and writes them in the default charset, so the comments stay within ASCII.
+    private static void checkArchive() throws IOException {
+
+        LinkedHashMap<String, String> comments = new LinkedHashMap<String, String>();
+
+        comments.put("[Anchor.Short]", "one line\n");
+        comments.put("[Anchor.Long]", "line\n".repeat(5000));
+        comments.put("[Anchor.Brackets]", "[Anchor.Inner] -u\n\n  a[i] = 0;\n");
+        comments.put("[Anchor.Same]", "same\n");
+        comments.put("[Anchor.Same2]", "same\n");
+
+        for(String exportStorage : List.of("files", "packed", "dedup")){
+
+            for(String importStorage : List.of("files", "packed", "dedup")){
+
+                Path tempDirPath = Files.createTempDirectory("anchor-test");
+
+                try{
+
+                    String name = exportStorage + " to " + importStorage;
+                    Path archivePath = tempDirPath.resolve("comments.anchor");
+                    CommentStore exported = openStore(getInitDirPathString(tempDirPath.resolve("export")), exportStorage);
+                    CommentStore imported = openStore(getInitDirPathString(tempDirPath.resolve("import")), importStorage);
+                    WritePlan plan = new WritePlan();
+
+                    for(Map.Entry<String, String> comment : comments.entrySet()){
+                        plan.add(comment.getKey(), "", comment.getValue());
+                    }
+
+                    check(exported.write(plan) == 1, "archive " + name + " stores the comments");
+                    checkEquals(comments.size(), CommentArchive.export(exported, archivePath), "archive " + name + " exports every comment");
+                    checkEquals(comments.size(), CommentArchive.importInto(archivePath, "-u", imported::write), "archive " + name + " imports every comment");
+                    checkEquals(comments, imported.read(comments.keySet()), "archive " + name + " round trips the comment data");
+
+                } finally{
+                    deleteRecursively(tempDirPath);
+                }
+
+            }
+
+        }
+
+    }
+
+    // Versions recorded as deltas, with a snapshot every SNAPSHOT_INTERVAL versions, are read back as they were saved.
+    private static void checkHistory() throws IOException {
+
+        Path tempDirPath = Files.createTempDirectory("anchor-test");
+
+        try{
+
+            CommentHistory history = new CommentHistory(getInitDirPathString(tempDirPath));
+            ArrayList<String> versions = new ArrayList<String>();
+            String data = "";
+
+            for(int i = 1; i <= 40; i++){
+
+                if(i % 5 == 0){
+                    data = "rewritten " + i + "\n"; // no common prefix or suffix with the previous version
+                }
+                else if(i % 2 == 0){
+                    data = data.replaceFirst("\\d+", "edited " + i); // a change in the middle
+                }
+                else{
+                    data += "line " + i + "\n";
+                }
+
+                versions.add(data);
+                history.update(getPlan(i % 2 == 0 ? "-u" : "-a", "[Anchor.H]", data), Map.of("[Anchor.H]", data));
+            }
+
+            history.update(getPlan("-r", "[Anchor.H]", null), Map.of());
+
+            boolean isEveryVersionRead = true;
+
+            for(int i = 0; i < versions.size(); i++){
+                isEveryVersionRead &= versions.get(i).equals(history.read("[Anchor.H]", i + 1));
+            }
+
+            check(isEveryVersionRead, "history reads every version back");
+            check(history.read("[Anchor.H]", versions.size() + 1) == null, "history reads a removal as no data");
+            check(history.read("[Anchor.H]", versions.size() + 2) == null, "history reads no version after the latest");
+
+            List<CommentHistory.Version> recorded = history.getVersions("[Anchor.H]");
+            long snapshotCount = recorded.stream().filter(version -> version.form == CommentHistory.SNAPSHOT).count();
+
+            checkEquals(versions.size() + 1, recorded.size(), "history lists every version");
+            check(snapshotCount > 1 && snapshotCount < recorded.size() / 2, "history records most versions as deltas");
+
+            history.update(getPlan("-u", "[Anchor.H]", "same"), Map.of("[Anchor.H]", "same"));
+            history.update(getPlan("-u", "[Anchor.H]", "same"), Map.of("[Anchor.H]", "same"));
+
+            checkEquals(versions.size() + 2, history.getVersions("[Anchor.H]").size(), "history skips a version with unchanged data");
+
+        } finally{
+            deleteRecursively(tempDirPath);
+        }
+
+    }
+
+    private static String getInitDirPathString(Path dirPath) throws IOException {
+        Files.createDirectories(dirPath);
+        return dirPath.resolve(".anchor").toString();
+    }
+
+    private static CommentStore openPacked(String initDirPathString){
+        return new PackedCommentStore(initDirPathString, new CommentCodec(initDirPathString, false), false);
+    }
+
+    private static CommentStore openStore(String initDirPathString, String storage){
+
+        HashMap<String, String> configData = new HashMap<String, String>();
+
+        configData.put("storage", storage);
+
+        return CommentStore.open(initDirPathString, configData);
+
+    }
+
+    // Returns a plan of the given option for each id, followed by its data.
+    private static WritePlan getPlan(String option, String... idsAndData){
+
+        WritePlan plan = new WritePlan();
+
+        for(int i = 0; i < idsAndData.length; i += 2){
+            plan.add(idsAndData[i], option, idsAndData[i + 1]);
+        }
+
+        return plan;
+
+    }
+
+    private static List<String> getIds(List<IdIndex.Entry> entries){
+
+        ArrayList<String> commentIds = new ArrayList<String>();
+
+        for(IdIndex.Entry entry : entries){
+            commentIds.add(entry.commentId);
+        }
+
+        return commentIds;
+
+    }
+
+    private static void truncate(Path filePath, long size) throws IOException {
+        try(FileChannel channel = FileChannel.open(filePath, StandardOpenOption.WRITE)){
+            channel.truncate(size);
+        }
+    }
+
+    // True if the record starting at offset, going by its id and body lengths, ends the log.
+    private static boolean isLastRecordAt(Path logPath, long offset) throws IOException {
+
+        try(DataInputStream logStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath)))){
+
+            logStream.skipNBytes(offset + 9);
+            int idLength = logStream.readUnsignedShort();
+            logStream.skipNBytes(idLength);
+            int bodyLength = logStream.readInt();
+
+            return offset + 15 + idLength + bodyLength == Files.size(logPath);
+
+        }
+
+    }
+
+    private static void checkOp(WritePlan plan, String commentId, WritePlan.Kind kind, String data){
+
+        WritePlan.Op op = plan.getOps().get(commentId);
+
+        check(op != null && op.kind == kind && Objects.equals(op.data, data), "write plan folds " + commentId + " into " + kind + (data == null ? "" : " of \"" + data + "\""));
+
+    }
+
+    private static void checkEquals(Object expected, Object actual, String name){
+
+        if(!Objects.equals(expected, actual)){
+            name += "\n    expected : " + abbreviate(expected) + "\n    actual   : " + abbreviate(actual);
+        }
+
+        check(Objects.equals(expected, actual), name);
+
+    }
+
+    private static String abbreviate(Object value){
+        String text = String.valueOf(value).replace("\n", "\\n");
+        return text.length() > 200 ? text.substring(0, 200) + "..." : text;
+    }
+
+    private static void check(boolean isPassed, String name){
+
+        checkCount++;
+
+        if(!isPassed){
+            failureCount++;
+            System.out.println("FAILED : " + name);
+        }
+
+    }
+
+    private static void deleteRecursively(Path dirPath) throws IOException {
+        try(Stream<Path> paths = Files.walk(dirPath)){
+            for(Path path : paths.sorted(Comparator.reverseOrder()).toList()){
+                Files.delete(path);
+            }
+        }
+    }
+
+}